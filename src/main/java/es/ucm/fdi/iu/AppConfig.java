@@ -3,10 +3,16 @@ package es.ucm.fdi.iu;
 import java.io.File;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support.ResourceBundleMessageSource;
 import org.springframework.core.env.Environment;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import es.ucm.fdi.iu.control.ApiRequestLogger;
+import es.ucm.fdi.iu.model.GenSequenceGenerator;
 
 /**
  * General configuration for a Spring app.
@@ -15,10 +21,13 @@ import org.springframework.core.env.Environment;
  * Spring magic. 
  */
 @Configuration	
-public class AppConfig {
+public class AppConfig implements WebMvcConfigurer {
 
 	@Autowired
 	private Environment env;
+
+	@Autowired
+	private ApiRequestLogger apiRequestLogger;
 	
 	/**
 	 * Declares a LocalData bean.
@@ -44,4 +53,25 @@ public class AppConfig {
         messageSource.setBasename("Messages");
         return messageSource;
     }
+
+	/**
+	 * Passes application settings that Hibernate needs on to Hibernate.
+	 *
+	 * For example, the size of the id blocks that are reserved with each
+	 * read of the id sequence. See GenSequenceGenerator.
+	 */
+	@Bean
+	public HibernatePropertiesCustomizer hibernatePropertiesCustomizer() {
+		return properties -> properties.put(GenSequenceGenerator.BLOCK_SIZE,
+				env.getProperty(GenSequenceGenerator.BLOCK_SIZE,
+						String.valueOf(GenSequenceGenerator.DEFAULT_BLOCK_SIZE)));
+	}
+
+	/**
+	 * Logs all API requests, once completed. See ApiRequestLogger.
+	 */
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(apiRequestLogger).addPathPatterns("/api/**");
+	}
 }
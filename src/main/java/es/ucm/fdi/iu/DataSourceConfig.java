@@ -0,0 +1,85 @@
+package es.ucm.fdi.iu;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Splits database connections into two pools: one for read-only transactions,
+ * and another for everything else. Long reads (say, streaming a large realm)
+ * can then never take the connections that writers need, nor the other way around.
+ *
+ * The pool is chosen when a connection is first used, rather than when it is
+ * requested, since only then is it known whether the transaction is read-only.
+ * Note that Hibernate holds on to a connection until the session closes (with
+ * open-session-in-view, at the end of the request); so a request that starts
+ * with a read-only transaction should not go on to write.
+ *
+ * The write pool is configured via spring.datasource.hikari.*, and the read
+ * pool via es.ucm.fdi.read-pool.*
+ */
+@Configuration
+public class DataSourceConfig {
+
+	/**
+	 * Both pools, behind a single DataSource; closing it closes both.
+	 */
+	public static class ReadWriteDataSource extends LazyConnectionDataSourceProxy {
+		private final HikariDataSource readPool;
+		private final HikariDataSource writePool;
+
+		private ReadWriteDataSource(HikariDataSource readPool, HikariDataSource writePool) {
+			this.readPool = readPool;
+			this.writePool = writePool;
+			AbstractRoutingDataSource routing = new AbstractRoutingDataSource() {
+				@Override
+				protected Object determineCurrentLookupKey() {
+					return TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+				}
+			};
+			Map<Object, Object> pools = new HashMap<>();
+			pools.put(true, readPool);
+			pools.put(false, writePool);
+			routing.setTargetDataSources(pools);
+			routing.setDefaultTargetDataSource(writePool);
+			routing.afterPropertiesSet();
+			setTargetDataSource(routing);
+			afterPropertiesSet();
+		}
+
+		public void close() {
+			readPool.close();
+			writePool.close();
+		}
+	}
+
+	@Bean
+	public DataSource dataSource(DataSourceProperties properties, Environment env) {
+		HikariDataSource readPool = pool(properties, env, "read", "es.ucm.fdi.read-pool");
+		readPool.setReadOnly(true);
+		HikariDataSource writePool = pool(properties, env, "write", "spring.datasource.hikari");
+		return new ReadWriteDataSource(readPool, writePool);
+	}
+
+	private static HikariDataSource pool(DataSourceProperties properties, Environment env,
+			String name, String prefix) {
+		HikariDataSource pool = properties.initializeDataSourceBuilder()
+				.type(HikariDataSource.class).build();
+		pool.setPoolName(name);
+		Binder.get(env).bind(prefix, Bindable.ofInstance(pool));
+		return pool;
+	}
+}
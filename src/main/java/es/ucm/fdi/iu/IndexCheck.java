@@ -0,0 +1,126 @@
+package es.ucm.fdi.iu;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.metamodel.EntityType;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Verifies, on startup, that the indexes and unique constraints declared in the
+ * model actually exist in the database.
+ *
+ * Hibernate creates them when generating the schema, but "validate" only checks
+ * tables and columns; so this check only runs when ddl-auto is "validate".
+ * Indexes are matched by table and columns, not by name.
+ */
+@Component
+public class IndexCheck {
+
+	private static final Logger log = LogManager.getLogger(IndexCheck.class);
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@EventListener(ContextRefreshedEvent.class)
+	public void contextRefreshedEvent() throws SQLException {
+		if ( ! "validate".equals(env.getProperty("spring.jpa.hibernate.ddl-auto"))) {
+			return;
+		}
+
+		List<String> missing = new ArrayList<>();
+		SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+		try (Connection c = dataSource.getConnection()) {
+			DatabaseMetaData md = c.getMetaData();
+			for (EntityType<?> e : entityManagerFactory.getMetamodel().getEntities()) {
+				Table t = e.getJavaType().getAnnotation(Table.class);
+				if (t == null) {
+					continue;
+				}
+				String table = ((AbstractEntityPersister) sessionFactory.getMetamodel()
+						.entityPersister(e.getJavaType())).getTableName();
+				Map<String, List<String>> indexes = new HashMap<>();
+				Set<String> unique = new HashSet<>();
+				readIndexes(md, table, indexes, unique);
+
+				for (Index i : t.indexes()) {
+					check(table, i.name(), Arrays.asList(i.columnList().split(",")),
+							i.unique(), indexes, unique, missing);
+				}
+				for (UniqueConstraint u : t.uniqueConstraints()) {
+					check(table, u.name(), Arrays.asList(u.columnNames()),
+							true, indexes, unique, missing);
+				}
+			}
+		}
+		if ( ! missing.isEmpty()) {
+			throw new IllegalStateException("Missing indexes or constraints: " + missing);
+		}
+		log.info("All declared indexes and unique constraints are present");
+	}
+
+	/**
+	 * Reads all indexes of a table, as index name to (upper-case) column list
+	 */
+	private static void readIndexes(DatabaseMetaData md, String table,
+			Map<String, List<String>> indexes, Set<String> unique) throws SQLException {
+		for (String name : new String[] {table, table.toUpperCase(), table.toLowerCase()}) {
+			try (ResultSet rs = md.getIndexInfo(null, null, name, false, false)) {
+				while (rs.next()) {
+					String index = rs.getString("INDEX_NAME");
+					String column = rs.getString("COLUMN_NAME");
+					if (index == null || column == null) {
+						continue;
+					}
+					List<String> columns = indexes.computeIfAbsent(index, k -> new ArrayList<>());
+					int position = rs.getShort("ORDINAL_POSITION");
+					while (columns.size() < position) {
+						columns.add(null);
+					}
+					columns.set(position - 1, column.toUpperCase());
+					if ( ! rs.getBoolean("NON_UNIQUE")) {
+						unique.add(index);
+					}
+				}
+			}
+			if ( ! indexes.isEmpty()) {
+				return;
+			}
+		}
+	}
+
+	private static void check(String table, String name, List<String> columns, boolean mustBeUnique,
+			Map<String, List<String>> indexes, Set<String> unique, List<String> missing) {
+		List<String> expected = new ArrayList<>();
+		for (String column : columns) {
+			expected.add(column.trim().toUpperCase());
+		}
+		boolean found = indexes.entrySet().stream().anyMatch(e ->
+				e.getValue().equals(expected) && ( ! mustBeUnique || unique.contains(e.getKey())));
+		if ( ! found) {
+			missing.add(name + " on " + table + expected);
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.transaction.annotation.Transactional;
 
 import es.ucm.fdi.iu.model.User;
 
@@ -26,6 +27,7 @@ public class IwUserDetailsService implements UserDetailsService {
         this.entityManager = em;
     }
 
+    @Transactional(readOnly = true)
     public UserDetails loadUserByUsername(String username){
     	try {
 	        User u = entityManager.createNamedQuery("User.byUsername", User.class)
@@ -35,8 +37,8 @@ public class IwUserDetailsService implements UserDetailsService {
 	        ArrayList<SimpleGrantedAuthority> roles = new ArrayList<>();
 	        for (String r : u.getRoles().split("[,]")) {
 	        	roles.add(new SimpleGrantedAuthority("ROLE_" + r));
-		        log.info("Roles for " + username + " include " + roles.get(roles.size()-1));
 	        }
+	        log.info("Roles for {} are {}", username, u.getRoles());
 	        return new org.springframework.security.core.userdetails.User(
 	        		u.getUsername(), u.getPassword(), roles); 
 	    } catch (Exception e) {
@@ -0,0 +1,105 @@
+package es.ucm.fdi.iu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hashes and verifies passwords on a dedicated pool of threads, one per core,
+ * so that bcrypt never runs on more cores than there are, nor on servlet threads.
+ *
+ * If too many hashes are already waiting (es.ucm.fdi.hash-queue-size), new ones
+ * fail right away with a RejectedExecutionException.
+ */
+@Component
+public class PasswordHasher {
+
+	private static final Logger log = LogManager.getLogger(PasswordHasher.class);
+
+	private static final String BCRYPT_PREFIX = "{bcrypt}";
+
+	private final PasswordEncoder passwordEncoder;
+	private final int cost;
+	private final int threads;
+	private final ThreadPoolExecutor executor;
+
+	public PasswordHasher(PasswordEncoder passwordEncoder,
+			@Value("${es.ucm.fdi.bcrypt-cost:10}") int cost,
+			@Value("${es.ucm.fdi.hash-queue-size:1024}") int queueSize) {
+		this.passwordEncoder = passwordEncoder;
+		this.cost = cost;
+		this.threads = Runtime.getRuntime().availableProcessors();
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread t = new Thread(r, "hasher-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		log.info("Hashing passwords with bcrypt cost {} on {} threads", cost, threads);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public CompletableFuture<String> hashAsync(String raw) {
+		return CompletableFuture.supplyAsync(() -> passwordEncoder.encode(raw), executor);
+	}
+
+	public CompletableFuture<Boolean> matchesAsync(String raw, String encoded) {
+		return CompletableFuture.supplyAsync(() -> passwordEncoder.matches(raw, encoded), executor);
+	}
+
+	/**
+	 * Hashes many passwords, on all hashing threads at once; but never queues
+	 * more than a few per thread, so that other hashes are not rejected meanwhile.
+	 */
+	public CompletableFuture<List<String>> hashAllAsync(List<String> raws) {
+		List<String> hashes = new ArrayList<>(raws.size());
+		CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+		int step = threads * 2;
+		for (int i = 0; i < raws.size(); i += step) {
+			List<String> chunk = raws.subList(i, Math.min(i + step, raws.size()));
+			done = done.thenCompose(v -> {
+				List<CompletableFuture<String>> pending = new ArrayList<>();
+				for (String raw : chunk) {
+					pending.add(hashAsync(raw));
+				}
+				return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+						.thenRun(() -> pending.forEach(f -> hashes.add(f.join())));
+			});
+		}
+		return done.thenApply(v -> hashes);
+	}
+
+	/**
+	 * True if a hash was not generated with bcrypt at the current cost;
+	 * in which case, it should be replaced next time the password is known.
+	 */
+	public boolean needsRehash(String encoded) {
+		if (encoded == null || ! encoded.startsWith(BCRYPT_PREFIX)) {
+			return true;
+		}
+		// bcrypt hashes look like $2a$10$..., where 10 is the cost
+		String[] parts = encoded.substring(BCRYPT_PREFIX.length()).split("\\$");
+		try {
+			return parts.length < 3 || Integer.parseInt(parts[2]) != cost;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+}
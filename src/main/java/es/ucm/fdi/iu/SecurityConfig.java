@@ -1,14 +1,21 @@
 package es.ucm.fdi.iu;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.factory.PasswordEncoderFactories;
+import org.springframework.security.crypto.password.DelegatingPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
 /**
@@ -72,8 +79,14 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 	 */
 	@Bean
 	public PasswordEncoder getPasswordEncoder() {
-		// by default in Spring Security 5, a wrapped new BCryptPasswordEncoder();
-		return PasswordEncoderFactories.createDelegatingPasswordEncoder(); 
+		// as by default in Spring Security 5, a wrapped BCryptPasswordEncoder; but with configurable cost
+		int cost = Integer.parseInt(env.getProperty("es.ucm.fdi.bcrypt-cost", "10"));
+		Map<String, PasswordEncoder> encoders = new HashMap<>();
+		encoders.put("bcrypt", new BCryptPasswordEncoder(cost));
+		DelegatingPasswordEncoder encoder = new DelegatingPasswordEncoder("bcrypt", encoders);
+		// hashes in any other format are still understood, as they were by default
+		encoder.setDefaultPasswordEncoderForMatches(PasswordEncoderFactories.createDelegatingPasswordEncoder());
+		return encoder;
 	}	
 	
 	/**
@@ -86,6 +99,19 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 		return new IwUserDetailsService();
 	} 
 	
+	/**
+	 * Authenticates form logins against the users in the database, via
+	 * a cache; so repeated logins do not hit the database every time.
+	 */
+	@Override
+	protected void configure(AuthenticationManagerBuilder auth) {
+		DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+		provider.setUserDetailsService(springDataUserDetailsService());
+		provider.setPasswordEncoder(getPasswordEncoder());
+		provider.setUserCache(userDetailsCache);
+		auth.authenticationProvider(provider);
+	}
+
 	/**
 	 * Declares an AuthenticationManager bean.
 	 * 
@@ -99,4 +125,7 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 	 
 	 @Autowired
 	 private LoginSuccessHandler loginSuccessHandler;
+
+	 @Autowired
+	 private UserDetailsCache userDetailsCache;
 }
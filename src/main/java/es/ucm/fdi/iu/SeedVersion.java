@@ -0,0 +1,177 @@
+package es.ucm.fdi.iu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+import es.ucm.fdi.iu.model.GenSequenceGenerator;
+
+/**
+ * Skips re-creating the schema, and replaying import.sql, when neither has
+ * changed since the database was last seeded; so that restarts keep the
+ * database as it was, and do less work.
+ *
+ * Only applies with es.ucm.fdi.seed=on-change. The version is a hash of
+ * SCHEMA_VERSION and of import.sql, kept in a "seed_version" table that
+ * Hibernate does not know about. If it matches, ddl-auto becomes "none"; otherwise
+ * "create" (never "create-drop", since the seed must outlive the app), and the
+ * new version is recorded once the app has started. The model's class files are
+ * not hashed, since they change with the compiler and its flags; so SCHEMA_VERSION
+ * must be bumped by hand whenever a change to the model changes the schema.
+ *
+ * A kept schema keeps its id sequence, which Hibernate will not alter; so if
+ * es.ucm.fdi.id-block-size has changed, the sequence is made to increment by the
+ * new size, restarting past every id it may already have handed out.
+ *
+ * With es.ucm.fdi.seed=always (the default), spring.jpa.hibernate.ddl-auto is
+ * used as is.
+ */
+@Component
+public class SeedVersion implements HibernatePropertiesCustomizer {
+
+	private static final Logger log = LogManager.getLogger(SeedVersion.class);
+
+	/**
+	 * Bump whenever a change to the model (in es.ucm.fdi.iu.model) changes the schema
+	 */
+	public static final int SCHEMA_VERSION = 1;
+
+	private static final String TABLE = "seed_version";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private DataSource dataSource;
+
+	// version to record once the schema has been created; or null if none
+	private String pending;
+
+	@Override
+	public void customize(Map<String, Object> properties) {
+		if ( ! "on-change".equals(env.getProperty("es.ucm.fdi.seed", "always"))) {
+			return;
+		}
+		String version = computeVersion();
+		String seeded = readVersion();
+		if (version.equals(seeded)) {
+			log.info("Schema and seed data unchanged ({}); not re-creating them", version);
+			properties.put(AvailableSettings.HBM2DDL_AUTO, "none");
+			adjustIncrement();
+		} else {
+			log.info("Schema or seed data changed ({}, was {}); re-creating them", version, seeded);
+			properties.put(AvailableSettings.HBM2DDL_AUTO, "create");
+			pending = version;
+		}
+	}
+
+	@EventListener(ContextRefreshedEvent.class)
+	public void contextRefreshedEvent() throws SQLException {
+		if (pending == null) {
+			return;
+		}
+		try (Connection c = dataSource.getConnection();
+				Statement st = c.createStatement()) {
+			st.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (version VARCHAR(64) NOT NULL)");
+			st.execute("DELETE FROM " + TABLE);
+			try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + TABLE + " VALUES (?)")) {
+				ps.setString(1, pending);
+				ps.executeUpdate();
+			}
+		}
+		log.info("Recorded schema version {}", pending);
+		pending = null;
+	}
+
+	/**
+	 * Returns the version of the current database; or null if it has none
+	 */
+	private String readVersion() {
+		try (Connection c = dataSource.getConnection();
+				Statement st = c.createStatement();
+				ResultSet rs = st.executeQuery("SELECT version FROM " + TABLE)) {
+			return rs.next() ? rs.getString(1) : null;
+		} catch (SQLException e) {
+			// most likely, no such table: never seeded in this mode
+			return null;
+		}
+	}
+
+	/**
+	 * Makes the id sequence increment by the configured block size, if it does not.
+	 * Its next value would be at least one old block past the last one read, so
+	 * restarting there never overlaps a block that may be in use.
+	 */
+	private void adjustIncrement() {
+		int blockSize = env.getProperty(GenSequenceGenerator.BLOCK_SIZE,
+				Integer.class, GenSequenceGenerator.DEFAULT_BLOCK_SIZE);
+		try (Connection c = dataSource.getConnection();
+				Statement st = c.createStatement()) {
+			long next;
+			long increment;
+			try (ResultSet rs = st.executeQuery("SELECT CURRENT_VALUE, INCREMENT "
+					+ "FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = '"
+					+ GenSequenceGenerator.SEQUENCE_NAME.toUpperCase() + "'")) {
+				if ( ! rs.next()) {
+					return;
+				}
+				next = rs.getLong(1) + rs.getLong(2);
+				increment = rs.getLong(2);
+			}
+			if (increment != blockSize) {
+				st.execute("ALTER SEQUENCE " + GenSequenceGenerator.SEQUENCE_NAME
+						+ " RESTART WITH " + next + " INCREMENT BY " + blockSize);
+				log.info("Id sequence now increments by {}, was {}; restarted at {}",
+						blockSize, increment, next);
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not adjust id sequence", e);
+		}
+	}
+
+	/**
+	 * Hashes SCHEMA_VERSION and import.sql
+	 */
+	private static String computeVersion() {
+		try {
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			all.write(("schema " + SCHEMA_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+			Resource seed = new ClassPathResource("import.sql");
+			if (seed.exists()) {
+				copy(seed, all);
+			}
+			return DigestUtils.md5DigestAsHex(all.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void copy(Resource r, ByteArrayOutputStream out) throws IOException {
+		try (InputStream in = r.getInputStream()) {
+			StreamUtils.copy(in, out);
+		}
+	}
+}
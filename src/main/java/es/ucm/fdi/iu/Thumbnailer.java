@@ -0,0 +1,335 @@
+package es.ucm.fdi.iu;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Generates, and keeps in LocalData, narrower copies of movie posters; so that
+ * lists of movies need not download full-size posters.
+ *
+ * Only widths in es.ucm.fdi.thumbnail-widths are generated; other widths are
+ * rounded up to the next one. Thumbnails are generated when first requested, or
+ * for many posters at once via generateAll(); always on a small pool of threads
+ * with a bounded queue (like PasswordHasher), so resizing never takes over the server.
+ * A thumbnail that is older than its poster is generated again.
+ *
+ * Files are written under a temporary name and then renamed, so a thumbnail is
+ * never seen half-written. The same goes for uploaded posters (see replace()).
+ */
+@Component
+public class Thumbnailer {
+
+	private static final Logger log = LogManager.getLogger(Thumbnailer.class);
+
+	private static final float JPEG_QUALITY = 0.85f;
+	// larger posters would take too much memory to scale
+	private static final long MAX_PIXELS = 25_000_000;
+
+	private final LocalData localData;
+	private final int[] widths;
+	private final int threads;
+	private final ThreadPoolExecutor executor;
+	// runs generateAll(), which feeds executor a few posters at a time
+	private final ExecutorService batches;
+
+	// thumbnails being generated, so that each is only generated once at a time
+	private final Map<File, CompletableFuture<File>> pending = new ConcurrentHashMap<>();
+
+	public Thumbnailer(LocalData localData,
+			@Value("${es.ucm.fdi.thumbnail-widths:100,300}") int[] widths,
+			@Value("${es.ucm.fdi.thumbnail-threads:2}") int threads,
+			@Value("${es.ucm.fdi.thumbnail-queue-size:256}") int queueSize) {
+		this.localData = localData;
+		this.widths = widths.clone();
+		Arrays.sort(this.widths);
+		this.threads = threads;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread t = new Thread(r, "thumbnailer-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		this.batches = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "thumbnailer-batch");
+			t.setDaemon(true);
+			return t;
+		});
+		log.info("Generating thumbnails {} px wide on {} threads", Arrays.toString(this.widths), threads);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		batches.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the file for the poster of a movie, given its imdb id; or null if that
+	 * id is not valid. The file will not exist if there is no poster for that movie.
+	 */
+	public File poster(String imdb) {
+		return imdb != null && imdb.matches("tt[0-9]+") ?
+				localData.getFile("posters", imdb + ".jpg") : null;
+	}
+
+	/**
+	 * Replaces the poster of a movie with an uploaded file, which must be in the
+	 * same folder as posters; and removes its thumbnails. The file is first checked
+	 * to be a JPEG image of reasonable dimensions, and then moved into place atomically:
+	 * readers see either the old poster or the new one, but never part of one.
+	 * Thumbnails still being generated from the old poster are waited for before
+	 * removing them, since they would otherwise look newer than the new poster.
+	 *
+	 * @throws IllegalArgumentException if the file is not acceptable as a poster
+	 */
+	public void replace(String imdb, Path upload) throws IOException {
+		checkJpeg(upload);
+		Files.move(upload, poster(imdb).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		List<CompletableFuture<File>> generating = new ArrayList<>();
+		for (int w : widths) {
+			CompletableFuture<File> f = pending.get(file(imdb, w));
+			if (f != null) {
+				generating.add(f);
+			}
+		}
+		join(generating);
+		evict(imdb);
+		log.info("Replaced poster for {}", imdb);
+	}
+
+	/**
+	 * Checks, without decoding it, that a file holds a JPEG image that is not too large to scale
+	 */
+	private static void checkJpeg(Path file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if ( ! readers.hasNext()) {
+				throw new IllegalArgumentException("not an image");
+			}
+			ImageReader reader = readers.next();
+			try {
+				if ( ! "jpeg".equalsIgnoreCase(reader.getFormatName())) {
+					throw new IllegalArgumentException("must be a JPEG image, not " + reader.getFormatName());
+				}
+				reader.setInput(in);
+				if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+					throw new IllegalArgumentException("image is too large: "
+							+ reader.getWidth(0) + "x" + reader.getHeight(0));
+				}
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Returns the width of the thumbnails that would be used for a requested width;
+	 * or 0 if the full-size poster should be used instead.
+	 */
+	public int width(int requested) {
+		for (int w : widths) {
+			if (w >= requested) {
+				return w;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the thumbnail for a poster, if it exists and is up to date; or null otherwise.
+	 */
+	public File get(File poster, String name, int width) {
+		File thumbnail = file(name, width);
+		long modified = thumbnail.lastModified();
+		return modified != 0 && modified >= poster.lastModified() ? thumbnail : null;
+	}
+
+	/**
+	 * Generates the thumbnail for a poster. Throws a RejectedExecutionException
+	 * if too many thumbnails are already waiting to be generated.
+	 */
+	public CompletableFuture<File> generate(File poster, String name, int width) {
+		File thumbnail = file(name, width);
+		CompletableFuture<File> f = new CompletableFuture<>();
+		CompletableFuture<File> previous = pending.putIfAbsent(thumbnail, f);
+		if (previous != null) {
+			return previous;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					f.complete(resize(poster, thumbnail, width));
+				} catch (Exception e) {
+					f.completeExceptionally(e);
+				} finally {
+					pending.remove(thumbnail);
+				}
+			});
+		} catch (RuntimeException e) {
+			pending.remove(thumbnail);
+			throw e;
+		}
+		return f;
+	}
+
+	/**
+	 * Generates, in the background, all missing or outdated thumbnails for a
+	 * set of posters. Never queues more than a few per thread, so that thumbnails
+	 * that are requested meanwhile are not rejected.
+	 */
+	public void generateAll(Map<String, File> posters) {
+		batches.execute(() -> {
+			List<CompletableFuture<File>> chunk = new ArrayList<>();
+			int generated = 0;
+			for (Map.Entry<String, File> e : posters.entrySet()) {
+				for (int w : widths) {
+					if (get(e.getValue(), e.getKey(), w) != null) {
+						continue;
+					}
+					try {
+						chunk.add(generate(e.getValue(), e.getKey(), w));
+					} catch (RejectedExecutionException ree) {
+						log.warn("Skipping {} px thumbnail for {}: too busy", w, e.getKey());
+					}
+					if (chunk.size() >= threads * 2) {
+						generated += join(chunk);
+					}
+				}
+			}
+			generated += join(chunk);
+			log.info("Generated {} thumbnails for {} posters", generated, posters.size());
+		});
+	}
+
+	/**
+	 * Removes all thumbnails for a poster; for example, because it has been replaced.
+	 */
+	public void evict(String name) {
+		for (int w : widths) {
+			file(name, w).delete();
+		}
+	}
+
+	/**
+	 * Scales an image (say, the default poster) in memory.
+	 */
+	public byte[] resize(byte[] image, int width) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			write(scale(ImageIO.read(new ByteArrayInputStream(image)), width), out);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private File file(String name, int width) {
+		return localData.getFile("thumbnails/" + width, name + ".jpg");
+	}
+
+	private static int join(Collection<CompletableFuture<File>> chunk) {
+		int done = 0;
+		for (CompletableFuture<File> f : chunk) {
+			try {
+				f.join();
+				done ++;
+			} catch (RuntimeException e) {
+				log.warn("Could not generate thumbnail: {}", e.getMessage());
+			}
+		}
+		chunk.clear();
+		return done;
+	}
+
+	private static File resize(File poster, File thumbnail, int width) throws IOException {
+		BufferedImage image = ImageIO.read(poster);
+		if (image == null) {
+			throw new IOException("Not a readable image: " + poster.getName());
+		}
+		Path tmp = Files.createTempFile(thumbnail.getParentFile().toPath(), "tmp-", ".jpg");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp)) {
+				write(scale(image, width), out);
+			}
+			Files.move(tmp, thumbnail.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Scales an image down to a given width, keeping its aspect ratio. Halves
+	 * it repeatedly before the final step, since bilinear scaling in one step
+	 * skips pixels when shrinking by more than half.
+	 */
+	private static BufferedImage scale(BufferedImage image, int width) {
+		BufferedImage current = image;
+		while (current.getWidth() > width) {
+			int w = Math.max(width, current.getWidth() / 2);
+			int h = Math.max(1, (int) Math.round((double) current.getHeight() * w / current.getWidth()));
+			BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = next.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(current, 0, 0, w, h, null);
+			g.dispose();
+			current = next;
+		}
+		return current;
+	}
+
+	private static void write(BufferedImage image, OutputStream out) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+}
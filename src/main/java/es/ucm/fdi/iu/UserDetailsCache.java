@@ -0,0 +1,93 @@
+package es.ucm.fdi.iu;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Bounded, least-recently-used cache of UserDetails, for form logins. Entries
+ * expire after a while, even if they are still being used.
+ *
+ * Since authentication erases the credentials of the UserDetails it returns,
+ * copies are stored and returned. It is the responsibility of whoever changes
+ * or removes a user to evict it.
+ */
+@Component
+public class UserDetailsCache implements UserCache {
+
+	private static class Entry {
+		private final UserDetails user;
+		private final long expires;
+
+		private Entry(UserDetails user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+	private final long ttlMillis;
+
+	public UserDetailsCache(
+			@Value("${es.ucm.fdi.user-cache-size:1024}") int maxSize,
+			@Value("${es.ucm.fdi.user-cache-ttl-seconds:300}") long ttlSeconds) {
+		this.ttlMillis = ttlSeconds * 1000;
+		entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		});
+	}
+
+	@Override
+	public UserDetails getUserFromCache(String username) {
+		Entry e = entries.get(username);
+		if (e == null) {
+			return null;
+		} else if (e.expires < System.currentTimeMillis()) {
+			entries.remove(username);
+			return null;
+		}
+		return User.withUserDetails(e.user).build();
+	}
+
+	@Override
+	public void putUserInCache(UserDetails user) {
+		entries.put(user.getUsername(), new Entry(
+				User.withUserDetails(user).build(),
+				System.currentTimeMillis() + ttlMillis));
+	}
+
+	/**
+	 * Evicts a user now and, if within a transaction, again after it completes,
+	 * in case a concurrent login re-cached it in-between.
+	 */
+	@Override
+	public void removeUserFromCache(String username) {
+		if (username == null) {
+			return;
+		}
+		entries.remove(username);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					entries.remove(username);
+				}
+			});
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+}
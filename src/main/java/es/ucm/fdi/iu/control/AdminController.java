@@ -4,6 +4,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,6 +27,7 @@ public class AdminController {
 	private EntityManager entityManager;
 
     @GetMapping("/")
+    @Transactional(readOnly = true)
     public String index(Model model) {
         model.addAttribute("users", entityManager.createQuery(
                 "SELECT u FROM User u").getResultList());
@@ -1,46 +1,86 @@
 package es.ucm.fdi.iu.control;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import es.ucm.fdi.iu.PasswordHasher;
+import es.ucm.fdi.iu.Thumbnailer;
+import es.ucm.fdi.iu.UserDetailsCache;
 import es.ucm.fdi.iu.model.*;
-import lombok.SneakyThrows;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.Hibernate;
+import org.hibernate.JDBCException;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.Query;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.transaction.Transactional;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 /**
  * General API manager.
  * No authentication is needed, but valid token prefixes are required for all
  * operations except "login", which itself requires valid username & password.
- * Most operations return the requesting user's full view of the system.
+ * Most operations return the requesting user's full view of the system;
+ * or, if called with `?delta=true`, only what they changed in it.
  * Note that users can typically not view other user's data.
  */
 @RestController
-@CrossOrigin
+@CrossOrigin(exposedHeaders = HttpHeaders.ETAG)
 @RequestMapping("api")
 public class ApiController {
 
     private static final Logger log = LogManager.getLogger(AdminController.class);
     private static final int TOKEN_LENGTH = 5;
 
+    /**
+     * If this request parameter is "true", mutations return a RealmDelta.Transfer
+     * instead of the full Realm.Transfer
+     */
+    public static final String DELTA_PARAM = "delta";
+
     @Autowired
     private EntityManager entityManager;
 
@@ -48,7 +88,51 @@ public class ApiController {
     private Environment env;
 
     @Autowired
-    private PasswordEncoder passwordEncoder;
+    private PasswordHasher hasher;
+
+    // runs transactions that follow hashing, so that they do not take up hashing threads
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    private Executor taskExecutor;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    // for pure reads: no flushing, no dirty-checking, and connections from the read pool
+    private TransactionTemplate readOnlyTransaction;
+
+    @Autowired
+    private HttpServletRequest request;
+
+    @Autowired
+    private RealmSnapshots snapshots;
+
+    @Autowired
+    private TokenCache tokens;
+
+    @Autowired
+    private UserDetailsCache userDetailsCache;
+
+    @Autowired
+    private RealmWriter realmWriter;
+
+    @Autowired
+    private RealmCloner realmCloner;
+
+    @Autowired
+    private RealmReader realmReader;
+
+    @Autowired
+    private Thumbnailer thumbnailer;
+
+    @Autowired
+    private Backups backups;
+
+    @Value("${es.ucm.fdi.poster-max-size:4MB}")
+    private DataSize posterMaxSize;
+
+    @Autowired
+    private ObjectMapper mapper;
 
     @ExceptionHandler(ApiException.class)
     public ResponseEntity handleException(ApiException e) {
@@ -60,6 +144,14 @@ public class ApiController {
                 .body(e.getMessage());
     }
 
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity handleBusy(RejectedExecutionException e) {
+        log.warn("Too busy to hash passwords: " + e.getMessage());
+        return ResponseEntity
+                .status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body("Server busy, please retry later");
+    }
+
     @ResponseStatus(value=HttpStatus.BAD_REQUEST, reason="Invalid request")  // 401
     public static class ApiException extends RuntimeException {
         public ApiException(String text, Throwable cause) {
@@ -81,17 +173,230 @@ public class ApiController {
     }
 
     private User resolveTokenOrBail(String tokenKey) {
+        TokenCache.Entry cached = tokens.get(tokenKey);
+        if (cached != null) {
+            User u = entityManager.find(User.class, cached.userId);
+            if (u != null && tokenKey.equals(u.getToken())) {
+                return u;
+            }
+            tokens.evict(tokenKey);
+        }
+
         List<User> results = entityManager.createQuery(
                 "from User u where u.token = :key", User.class)
                 .setParameter("key", tokenKey)
                 .getResultList();
         if ( ! results.isEmpty()) {
-            return results.get(0);
+            User u = results.get(0);
+            tokens.put(tokenKey, u.getId(), u.getRealm().getId());
+            return u;
         } else {
             throw new ApiException("Invalid token", null);
         }
     }
 
+    /**
+     * Flushes and bumps the version of a realm. This also serializes concurrent
+     * writers to that realm until commit, and must be called whenever anything
+     * that is visible in its Realm.Transfer changes.
+     */
+    private void bumpVersion(Realm realm) {
+        entityManager.flush();
+        entityManager.createNamedQuery("Realm.bumpVersion")
+                .setParameter("id", realm.getId())
+                .executeUpdate();
+        realm.setVersion(entityManager.createNamedQuery("Realm.version", Long.class)
+                .setParameter("id", realm.getId())
+                .getSingleResult());
+        snapshots.committedOnSuccess(realm.getId(), realm.getVersion());
+    }
+
+    /**
+     * A change requested via the API, which records what it changes in a delta.
+     * Mutations do not flush or respond, so that several can share a transaction.
+     */
+    @FunctionalInterface
+    private interface Mutation {
+        void apply(User u, JsonNode data, RealmDelta delta);
+    }
+
+    /**
+     * Mutations that can be requested in a batch, by endpoint name
+     */
+    private final Map<String, Mutation> mutations = new HashMap<>();
+
+    @PostConstruct
+    private void initReadOnlyTransaction() {
+        readOnlyTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Formats for realm exports and imports, by name; with their content types
+     */
+    private final Map<String, JsonFactory> exportFormats = new LinkedHashMap<>();
+    private static final Map<String, String> EXPORT_TYPES = new HashMap<>();
+    static {
+        EXPORT_TYPES.put("json", MediaType.APPLICATION_JSON_VALUE);
+        EXPORT_TYPES.put("smile", "application/x-jackson-smile");
+        EXPORT_TYPES.put("cbor", MediaType.APPLICATION_CBOR_VALUE);
+    }
+
+    @PostConstruct
+    private void initExportFormats() {
+        exportFormats.put("json", mapper.getFactory());
+        exportFormats.put("smile", new SmileFactory(mapper));
+        exportFormats.put("cbor", new CBORFactory(mapper));
+    }
+
+    private JsonFactory exportFormat(String format) {
+        JsonFactory factory = exportFormats.get(format);
+        if (factory == null) {
+            throw new ApiException("format must be one of " + exportFormats.keySet(), null);
+        }
+        return factory;
+    }
+
+    @PostConstruct
+    private void registerMutations() {
+        mutations.put("adduser", this::addUser);
+        mutations.put("setuser", this::setUser);
+        mutations.put("rmuser", this::rmUser);
+        mutations.put("addmovie", this::addMovie);
+        mutations.put("setmovie", this::setMovie);
+        mutations.put("rmmovie", this::rmMovie);
+        mutations.put("addgroup", this::addGroup);
+        mutations.put("setgroup", this::setGroup);
+        mutations.put("rmgroup", this::rmGroup);
+        mutations.put("addrating", this::addRating);
+        mutations.put("setrating", this::setRating);
+        mutations.put("rmrating", this::rmRating);
+        mutations.put("addrequest", this::addRequest);
+        mutations.put("setrequest", this::setRequest);
+    }
+
+    /**
+     * Runs a single mutation on behalf of the owner of a token, and responds
+     */
+    private Object mutate(String token, JsonNode data, Mutation mutation) {
+        User u = resolveTokenOrBail(token);
+        RealmDelta delta = new RealmDelta(u.getRealm());
+        mutation.apply(u, data, delta);
+        return respond(u, delta);
+    }
+
+    /**
+     * Finishes a mutation. Bumps the version of the changed realm, and returns
+     * either the requester's full realm (streamed when written) or, if requested,
+     * only the changes.
+     */
+    private Object respond(User u, RealmDelta delta) {
+        bumpVersion(delta.getRealm());
+        return "true".equals(request.getParameter(DELTA_PARAM)) ?
+                delta.toTransfer() :
+                realmWriter.stream(u.getRealm().getId());
+    }
+
+    /**
+     * Request attribute with password hashes precomputed by hashPasswords(), by data node
+     */
+    private static final String HASHES_ATTRIBUTE = ApiController.class.getName() + ".hashes";
+
+    /**
+     * Returns the hash of the password found in a request's data, as precomputed
+     * by hashPasswords(); never hashes it here, within a write transaction.
+     */
+    private String hashPassword(JsonNode data, String password) {
+        @SuppressWarnings("unchecked")
+        Map<JsonNode, String> hashes = (Map<JsonNode, String>) request.getAttribute(HASHES_ATTRIBUTE);
+        String hash = hashes != null ? hashes.get(data) : null;
+        if (hash == null) {
+            throw new IllegalStateException("Password was not hashed up-front");
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes the (non-empty) passwords in some data nodes, off the request thread;
+     * and returns them by node, as hashPassword() expects to find them.
+     */
+    private CompletableFuture<Map<JsonNode, String>> hashPasswords(List<JsonNode> nodes) {
+        List<JsonNode> withPasswords = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        for (JsonNode d : nodes) {
+            // as read by check(), so that every password it accepts is hashed here
+            String password = d.has("password") ? d.get("password").asText() : "";
+            if ( ! password.isEmpty()) {
+                withPasswords.add(d);
+                passwords.add(password);
+            }
+        }
+        return hasher.hashAllAsync(passwords).thenApply(hashed -> {
+            Map<JsonNode, String> hashes = new IdentityHashMap<>();
+            for (int i = 0; i < hashed.size(); i++) {
+                hashes.put(withPasswords.get(i), hashed.get(i));
+            }
+            return hashes;
+        });
+    }
+
+    /**
+     * Runs some work once the passwords in some data nodes have been hashed (see
+     * hashPasswords); in a transaction, on the task executor, and with access to
+     * the current request. Neither hashing nor waiting for it holds a servlet thread.
+     * Callers should check the requester's role first, so that not just anyone
+     * can keep the hashing threads busy.
+     */
+    private <T> CompletableFuture<T> afterHashing(List<JsonNode> nodes, Supplier<T> work) {
+        RequestAttributes attributes = RequestContextHolder.currentRequestAttributes();
+        return hashPasswords(nodes).thenApplyAsync(hashes -> {
+            RequestContextHolder.setRequestAttributes(attributes);
+            try {
+                request.setAttribute(HASHES_ATTRIBUTE, hashes);
+                return transactionTemplate.execute(s -> work.get());
+            } finally {
+                RequestContextHolder.resetRequestAttributes();
+            }
+        }, taskExecutor);
+    }
+
+    /**
+     * Adds to an entity's collection only if it has already been loaded. Otherwise,
+     * it will include the addition when loaded after the next flush; and adding to
+     * it now would load it in full.
+     */
+    private static <T> void addIfLoaded(Collection<T> collection, T o) {
+        if (Hibernate.isInitialized(collection)) {
+            collection.add(o);
+        }
+    }
+
+    /**
+     * Sends pending changes to the database before reading collections that
+     * addIfLoaded may have skipped; which, within a batch, is not done for us.
+     * Otherwise, entities created earlier in the batch would be missing from them.
+     */
+    private void flushBeforeLoading() {
+        entityManager.flush();
+    }
+
+    /**
+     * Evicts a realm's list of movies from the second-level cache, now and, once
+     * the transaction completes, again; in case it was re-cached in-between.
+     */
+    private void evictMovies(Realm realm) {
+        org.hibernate.Cache cache = entityManager.getEntityManagerFactory()
+                .unwrap(SessionFactory.class).getCache();
+        long id = realm.getId();
+        cache.evictCollectionData(Realm.MOVIES_REGION, id);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                cache.evictCollectionData(Realm.MOVIES_REGION, id);
+            }
+        });
+    }
+
     /**
      * Returns true if a given string can be parsed as a Long
      */
@@ -175,24 +480,23 @@ public class ApiController {
     @Transactional
     public void logout(
             @PathVariable String token) {
-        log.info(token + "/logout");
         User t = resolveTokenOrBail(token);
+        tokens.evict(t.getToken());
         t.setToken(generateRandomBase64Token(TOKEN_LENGTH));
+        bumpVersion(t.getRealm());
     }
 
 
     /**
      * Requests a token from the system. Provides a user to do so, for which only the
-     * password and username are looked at
+     * password and username are looked at. The password is checked off the request
+     * thread; and, if its hash is outdated (see PasswordHasher), replaced. The token
+     * is then updated on the task executor, and not on the hashing threads.
      * @param data attempting to log in.
-     * @throws JsonProcessingException
      */
     @PostMapping("/login")
-    @Transactional
-    public User.TokenTransfer login(
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info("/login/" + new ObjectMapper().writeValueAsString(data));
-
+    public CompletableFuture<User.TokenTransfer> login(
+            @RequestBody JsonNode data) {
         String username = checkMandatory(data, "username",
                 d->!d.isEmpty(), "cannot be empty", null);
         String password = checkMandatory(data, "password",
@@ -206,71 +510,309 @@ public class ApiController {
                 .getResultList();
         // only expecting one, because uid is unique
         User u = results.isEmpty() ? null : results.get(0);
-
-        if (u == null ||
-              (! passwordEncoder.matches(password, u.getPassword()) &&
-               ! password.equals(env.getProperty("es.ucm.fdi.master-key")))) {
+        if (u == null) {
             throw new ApiAuthException("Invalid username or password for " + username + "");
         }
-
-        // only change token if it was null, or "renew" requested
-        if (u.getToken() == null || "true".equals(renew)) {
-            u.setToken(generateRandomBase64Token(TOKEN_LENGTH));
-        }
-        return u.toTokenTransfer();
+        long id = u.getId();
+        String hash = u.getPassword();
+
+        CompletableFuture<Boolean> matches =
+                password.equals(env.getProperty("es.ucm.fdi.master-key")) ?
+                        CompletableFuture.completedFuture(false) :
+                        hasher.matchesAsync(password, hash)
+                                .thenApply(ok -> {
+                                    if ( ! ok) {
+                                        throw new ApiAuthException("Invalid username or password for " + username + "");
+                                    }
+                                    return true;
+                                });
+        return matches
+                .thenCompose(ok -> ok && hasher.needsRehash(hash) ?
+                        hasher.hashAsync(password) :
+                        CompletableFuture.completedFuture(null))
+                .thenApplyAsync(rehash -> transactionTemplate.execute(status -> {
+                    User t = entityManager.find(User.class, id);
+                    // unless it was changed meanwhile
+                    if (rehash != null && hash.equals(t.getPassword())) {
+                        t.setPassword(rehash);
+                        userDetailsCache.removeUserFromCache(t.getUsername());
+                    }
+                    // only change token if it was null, or "renew" requested
+                    if (t.getToken() == null || "true".equals(renew)) {
+                        tokens.evict(t.getToken());
+                        t.setToken(generateRandomBase64Token(TOKEN_LENGTH));
+                        bumpVersion(t.getRealm());
+                    }
+                    return t.toTokenTransfer();
+                }), taskExecutor);
     }
 
-    @SneakyThrows
+    /**
+     * Starts a backup, and returns right away; see Backups. With "incremental": "true",
+     * only realms that changed since the previous backup are included.
+     */
     @PostMapping("/{token}/backup")
-    @Transactional
-    public User.TokenTransfer doBackup(
+    public Backups.Job doBackup(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/backup/" + new ObjectMapper().writeValueAsString(data));
-
-        User u = resolveTokenOrBail(token);
-        ensureRole(u, User.Role.ROOT);
+            @RequestBody JsonNode data) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ROOT));
 
-        String path = checkMandatory(data, "path",
-                d->!d.isEmpty(), "cannot be empty", null);
+        boolean incremental = "true".equals(checkOptional(data, "incremental",
+                d -> "true".equals(d) || "false".equals(d), "must be 'true' or 'false'", null));
         try {
-            File f = new File(path.replaceAll("'", "")).getCanonicalFile();
-            entityManager.createNativeQuery("SCRIPT DROP TO '" + f.getCanonicalPath() + "'").getResultList();
-        } catch (IOException e) {
-            throw new ApiException("backup error " + e.getMessage(), e);
+            return backups.start(incremental);
+        } catch (IllegalStateException e) {
+            throw new ApiException(e.getMessage(), null);
         }
+    }
+
+    /**
+     * Returns the status of recent backups; or, if given an id, of only that one
+     */
+    @RequestMapping(value = "/{token}/backups", method = {RequestMethod.GET, RequestMethod.POST})
+    public Object listBackups(
+            @PathVariable String token,
+            @RequestParam(value = "id", required = false) Long id) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ROOT));
 
-        return u.toTokenTransfer();
+        if (id == null) {
+            return backups.list();
+        }
+        Backups.Job job = backups.get(id);
+        if (job == null) {
+            throw new ApiException("No such backup: " + id, null);
+        }
+        return job;
     }
 
+    /**
+     * Runs a backup script; given either its absolute path, or its name within the
+     * backups folder (see Backups). Incremental backups must be restored in order,
+     * on top of the backup that preceded them.
+     *
+     * With "batched": "true", the script is restored in the background by Restorer,
+     * and the restore job is returned; its progress can be followed via /backups.
+     * Otherwise, it is restored right away by RUNSCRIPT, and the finished job is returned.
+     * Either way, only if no backup or restore is running (see Backups).
+     */
     @PostMapping("/{token}/restore")
     @Transactional
-    public void doRestore(
+    public Backups.Job doRestore(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/restore/" + new ObjectMapper().writeValueAsString(data));
+            @RequestBody JsonNode data) {
         if ( ! token.equals(env.getProperty("es.ucm.fdi.master-key"))) {
-            throw new ApiException("bad credentials: '" + token + "'", null);
+            throw new ApiException("bad credentials", null);
         }
 
         String path = checkMandatory(data, "path",
                 d->!d.isEmpty(), "cannot be empty", null);
+        boolean batched = "true".equals(checkOptional(data, "batched",
+                d -> "true".equals(d) || "false".equals(d), "must be 'true' or 'false'", null));
 
         try {
-            File f = new File(path.replaceAll("'", "")).getCanonicalFile();
-            entityManager.createNativeQuery("RUNSCRIPT FROM '" + f.getCanonicalPath() + "'").executeUpdate();
+            File f = backups.file(path.replaceAll("'", "")).getCanonicalFile();
+            if ( ! f.isFile()) {
+                throw new ApiException("No such backup: " + path, null);
+            }
+            return batched ?
+                    backups.restore(f, this::forgetRestoredState) :
+                    backups.restoreNow(f, this::forgetRestoredState);
         } catch (IOException e) {
             throw new ApiException("restore error " + e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            throw new ApiException(e.getMessage(), null);
         }
     }
 
-    @PostMapping("/{token}/addrealm")
+    /**
+     * Drops everything cached about the database, which a restore has replaced
+     */
+    private void forgetRestoredState() {
+        entityManager.getEntityManagerFactory().getCache().evictAll();
+        snapshots.clear();
+        tokens.clear();
+        userDetailsCache.clear();
+    }
+
+    /**
+     * Sets the poster of a movie, replacing any previous one (see Thumbnailer.replace).
+     * Posters are shared by all movies with the same imdb id, whatever their realm;
+     * so only root can set them. Uploads are streamed to a temporary file, and
+     * never held in memory; they must be JPEG images of at most es.ucm.fdi.poster-max-size.
+     */
+    @PostMapping(value = "/{token}/poster/{imdb}", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Map<String, Object> setPoster(
+            @PathVariable String token,
+            @PathVariable String imdb,
+            @RequestParam("file") MultipartFile file) throws IOException {
+        File poster = thumbnailer.poster(imdb);
+        if (poster == null) {
+            throw new ApiException("Not a valid imdb id: " + imdb, null);
+        }
+        readOnlyTransaction.executeWithoutResult(s -> {
+            User u = resolveTokenOrBail(token);
+            ensureRole(u, User.Role.ROOT);
+            if (entityManager.createQuery("SELECT COUNT(m) FROM Movie m "
+                    + "WHERE m.imdb = :imdb", Long.class)
+                    .setParameter("imdb", imdb)
+                    .getSingleResult() == 0) {
+                throw new ApiException("No such movie: " + imdb, null);
+            }
+        });
+        if (file.isEmpty() || file.getSize() > posterMaxSize.toBytes()) {
+            throw new ApiException("Poster must have between 1 and "
+                    + posterMaxSize.toBytes() + " bytes, not " + file.getSize(), null);
+        }
+
+        // in the same folder as posters, so that it can be renamed into place
+        Path upload = Files.createTempFile(poster.getParentFile().toPath(), "upload-", ".tmp");
+        try {
+            file.transferTo(upload);
+            thumbnailer.replace(imdb, upload);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException("Bad poster for " + imdb + ": " + e.getMessage(), null);
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("imdb", imdb);
+        result.put("bytes", file.getSize());
+        return result;
+    }
+
+    /**
+     * Generates, in the background, any missing thumbnails for the posters of the
+     * movies in the requester's realm (see Thumbnailer). Returns how many posters
+     * were found.
+     */
+    @PostMapping("/{token}/thumbnails")
+    public Map<String, Integer> generateThumbnails(
+            @PathVariable String token) {
+        List<String> imdbs = readOnlyTransaction.execute(s -> {
+            User u = resolveTokenOrBail(token);
+            ensureRole(u, User.Role.ADMIN);
+            return entityManager.createQuery(
+                    "SELECT m.imdb FROM Movie m WHERE m.realm.id = :id", String.class)
+                    .setParameter("id", u.getRealm().getId())
+                    .getResultList();
+        });
+        Map<String, File> posters = new LinkedHashMap<>();
+        for (String imdb : imdbs) {
+            File f = thumbnailer.poster(imdb);
+            if (f != null && f.exists()) {
+                posters.put(imdb, f);
+            }
+        }
+        thumbnailer.generateAll(posters);
+        return Collections.singletonMap("posters", posters.size());
+    }
+
+    /**
+     * Returns second-level cache statistics (hits, misses, puts and, if known, size) by region
+     */
+    @RequestMapping(value = "/{token}/cachestats", method = {RequestMethod.GET, RequestMethod.POST})
+    public Map<String, Map<String, Long>> cacheStats(
+            @PathVariable String token) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ROOT));
+
+        Statistics stats = entityManager.getEntityManagerFactory()
+                .unwrap(SessionFactory.class).getStatistics();
+        Map<String, Map<String, Long>> regions = new TreeMap<>();
+        for (String name : stats.getSecondLevelCacheRegionNames()) {
+            CacheRegionStatistics r = stats.getDomainDataRegionStatistics(name);
+            Map<String, Long> region = new LinkedHashMap<>();
+            region.put("hits", r.getHitCount());
+            region.put("misses", r.getMissCount());
+            region.put("puts", r.getPutCount());
+            if (r.getElementCountInMemory() >= 0) {
+                region.put("size", r.getElementCountInMemory());
+            }
+            regions.put(name, region);
+        }
+        return regions;
+    }
+
+    /**
+     * Exports a realm, so that it can be imported into another node via /import
+     * (see RealmWriter.export). Admins export their own realm; ROOT can choose one.
+     * The format can be json (default), smile or cbor; all are streamed as they
+     * are read, with the same fields.
+     */
+    @RequestMapping(value = "/{token}/export", method = {RequestMethod.GET, RequestMethod.POST})
+    public void export(
+            @PathVariable String token,
+            @RequestParam(value = "format", defaultValue = "json") String format,
+            @RequestParam(value = "realm", required = false) Long realm,
+            HttpServletResponse response) throws IOException {
+        JsonFactory factory = exportFormat(format);
+        long realmId = readOnlyTransaction.execute(s -> {
+            User u = resolveTokenOrBail(token);
+            ensureRole(u, User.Role.ADMIN);
+            if (realm == null || realm == u.getRealm().getId()) {
+                return u.getRealm().getId();
+            }
+            ensureRole(u, User.Role.ROOT);
+            if (entityManager.find(Realm.class, realm) == null) {
+                throw new ApiException("No such realm: " + realm, null);
+            }
+            return realm;
+        });
+
+        response.setContentType(EXPORT_TYPES.get(format));
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"realm-" + realmId + "." + format + "\"");
+        try (JsonGenerator g = factory.createGenerator(response.getOutputStream())) {
+            realmWriter.export(realmId, g);
+        }
+    }
+
+    /**
+     * Imports a realm written by /export into a new realm (see RealmReader), and
+     * returns its id and how many rows were imported. The format is told by the
+     * content type, as sent by /export; the realm can be renamed with "name".
+     * Fails, importing nothing, if any of its usernames is already taken.
+     */
+    @PostMapping(value = "/{token}/import", consumes = {MediaType.APPLICATION_JSON_VALUE,
+            "application/x-jackson-smile", MediaType.APPLICATION_CBOR_VALUE})
     @Transactional
-    public Realm.Transfer addRealm(
+    public Map<String, Object> importRealm(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/addrealm/" + new ObjectMapper().writeValueAsString(data));
+            @RequestParam(value = "name", required = false) String name,
+            @RequestHeader(HttpHeaders.CONTENT_TYPE) MediaType type,
+            HttpServletRequest request) throws IOException {
+        ensureRole(resolveTokenOrBail(token), User.Role.ROOT);
+        JsonFactory factory = exportFormat(EXPORT_TYPES.entrySet().stream()
+                .filter(e -> type.isCompatibleWith(MediaType.parseMediaType(e.getValue())))
+                .map(Map.Entry::getKey)
+                .findFirst().orElse(""));
+
+        try (JsonParser p = factory.createParser(request.getInputStream())) {
+            return realmReader.read(p, name);
+        } catch (IllegalArgumentException | JsonProcessingException e) {
+            throw new ApiException("Invalid export: " + e.getMessage(), e);
+        } catch (JDBCException e) {
+            throw new ApiException("Could not import: " + e.getSQLException().getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a realm, with an admin. If given a base realm, copies its movies;
+     * and, if requested, also its users, groups and ratings (see RealmCloner).
+     * The admin's password is hashed first (see afterHashing).
+     */
+    @PostMapping("/{token}/addrealm")
+    public CompletableFuture<Object> addRealm(
+            @PathVariable String token,
+            @RequestBody JsonNode data) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ROOT));
+        return afterHashing(Collections.singletonList(data), () -> createRealm(token, data));
+    }
 
+    private Object createRealm(String token, JsonNode data) {
         User u = resolveTokenOrBail(token);
         ensureRole(u, User.Role.ROOT);
 
@@ -289,44 +831,43 @@ public class ApiController {
                 ra::setUsername);
         checkMandatory(data, "password",
                 d->!d.isEmpty(), "cannot be empty",
-                d->ra.setPassword(passwordEncoder.encode(d)));
+                d->ra.setPassword(hashPassword(data, d)));
 
         entityManager.persist(r);
         entityManager.persist(ra);
         entityManager.flush();
 
-        // and, if requested, copy over movies from requested realm
+        // and, if requested, copy over movies (and maybe more) from requested realm
         String base = checkOptional(data, "base",
                 ApiController::canParseAsLong, "must be valid realm id", null);
+        Predicate<String> isBoolean = d -> "true".equals(d) || "false".equals(d);
+        boolean users = "true".equals(checkOptional(data, "users",
+                isBoolean, "must be 'true' or 'false'", null));
+        boolean groups = "true".equals(checkOptional(data, "groups",
+                isBoolean, "must be 'true' or 'false'", null));
+        boolean ratings = "true".equals(checkOptional(data, "ratings",
+                isBoolean, "must be 'true' or 'false'", null));
         if (base != null) {
             Realm o = entityManager.find(Realm.class, data.get("base").asLong());
             if (o == null) {
                 throw new ApiException("must be valid realm id: " + data.get("base"), null);
             }
-            for (Movie m : o.getMovies()) {
-                Movie copy = new Movie();
-                copy.setActors(m.getActors());
-                copy.setDirector(m.getDirector());
-                copy.setImdb(m.getImdb());
-                copy.setMinutes(m.getMinutes());
-                copy.setName(m.getName());
-                copy.setYear(m.getYear());
-                copy.setRealm(o);
-                r.getMovies().add(copy);
-                entityManager.persist(copy);
+            if ((groups || ratings) && ! users) {
+                throw new ApiException("Can only copy groups or ratings along with users", null);
             }
-            entityManager.flush();
+            realmCloner.copy(o.getId(), r.getId(), users, groups, ratings);
+        } else if (users || groups || ratings) {
+            throw new ApiException("Can only copy users, groups or ratings from a base realm", null);
         }
 
-        return r.toTransfer();
+        return realmWriter.stream(r.getId());
     }
 
     @PostMapping("/{token}/rmrealm")
     @Transactional
-    public Realm.Transfer clearRealm(
+    public Object clearRealm(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/clearrealm/" + new ObjectMapper().writeValueAsString(data));
+            @RequestBody JsonNode data) {
         User u = resolveTokenOrBail(token);
         ensureRole(u, User.Role.ROOT);
 
@@ -339,21 +880,26 @@ public class ApiController {
         }
 
         entityManager.remove(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        snapshots.evict(o.getId());
+        tokens.evictRealm(o.getId());
+        userDetailsCache.clear();
+        return respond(u, new RealmDelta(u.getRealm()));
     }
 
     @PostMapping("/{token}/adduser")
-    @Transactional
-    public Realm.Transfer addUser(
+    public CompletableFuture<Object> addUser(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/adduser/" + new ObjectMapper().writeValueAsString(data));
+            @RequestBody JsonNode data) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ADMIN));
+        return afterHashing(Collections.singletonList(data), () -> mutate(token, data, this::addUser));
+    }
 
-        User u = resolveTokenOrBail(token);
+    private void addUser(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         User o = new User();
+        delta.changed(o);
         o.setRealm(u.getRealm());
         o.setEnabled(true);
         o.setRoles("" + User.Role.USER);
@@ -362,7 +908,7 @@ public class ApiController {
                 o::setUsername);
         checkMandatory(data, "password",
                 d->!d.isEmpty(), "cannot be empty",
-                d->o.setPassword(passwordEncoder.encode(d)));
+                d->o.setPassword(hashPassword(data, d)));
         o.setToken(generateRandomBase64Token(TOKEN_LENGTH));
 
         if (data.has("groups") && data.get("groups").isArray()) {
@@ -393,20 +939,22 @@ public class ApiController {
                 o.getGroups().add(g);
                 g.getMembers().add(o);
             }
+            delta.changed(groupsToRemoveFrom).changed(groupsToAddTo);
         }
 
         entityManager.persist(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/setuser")
-    @Transactional
-    public Realm.Transfer setUser(
+    public CompletableFuture<Object> setUser(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/setuser/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        readOnlyTransaction.executeWithoutResult(s ->
+                ensureRole(resolveTokenOrBail(token), User.Role.ADMIN));
+        return afterHashing(Collections.singletonList(data), () -> mutate(token, data, this::setUser));
+    }
+
+    private void setUser(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
@@ -416,6 +964,13 @@ public class ApiController {
         if (o == null) {
             throw new ApiException("No such user: " + data.get("id"), null);
         }
+        tokens.evict(o.getToken());
+        userDetailsCache.removeUserFromCache(o.getUsername());
+        if (o.getRealm().getId() == u.getRealm().getId()) {
+            delta.changed(o);
+        } else {
+            bumpVersion(o.getRealm()); // deltas only describe the requester's realm
+        }
 
         checkOptional(data, "enabled",
                 d->("true".equals(d) || "false".equals(d)), "must be 'true' or 'false'",
@@ -425,19 +980,19 @@ public class ApiController {
                 o::setUsername);
         checkOptional(data, "password",
                 d->!d.isEmpty(), "cannot be empty",
-                d->o.setPassword(passwordEncoder.encode(d)));
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+                d->o.setPassword(hashPassword(data, d)));
     }
 
 
     @PostMapping("/{token}/rmuser")
     @Transactional
-    public Realm.Transfer rmUser(
+    public Object rmUser(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/rmuser/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::rmUser);
+    }
+
+    private void rmUser(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
@@ -451,24 +1006,52 @@ public class ApiController {
         if (o.getId() == u.getId()) {
             throw new ApiException("You are not allowed to remove yourself", null);
         }
+        tokens.evict(o.getToken());
+        userDetailsCache.removeUserFromCache(o.getUsername());
+        if (o.getRealm().getId() != u.getRealm().getId()) {
+            bumpVersion(o.getRealm()); // deltas only describe the requester's realm
+        }
+        flushBeforeLoading();
 
         // remove from groups
+        delta.removed(o.getId());
         for (Group g : o.getGroups()) {
             g.getMembers().remove(o);
+            delta.changed(g);
+        }
+        // ratings and requests go away with the user
+        for (Rating r : o.getRatings()) {
+            r.getMovie().getRatings().remove(r);
+            delta.changed(r.getMovie()).removed(r.getId());
+        }
+        for (Request r : o.getRequests()) {
+            r.getGroup().getRequests().remove(r);
+            delta.changed(r.getGroup()).removed(r.getId());
+        }
+        // and so do the groups it owned
+        for (Group g : o.getManagedGroups()) {
+            delta.removed(g.getId()).changed(g.getMembers());
+            for (User m : g.getMembers()) {
+                m.getGroups().remove(g);
+            }
+            for (Request r : g.getRequests()) {
+                r.getUser().getRequests().remove(r);
+                delta.changed(r.getUser()).removed(r.getId());
+            }
         }
 
         entityManager.remove(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/addmovie")
     @Transactional
-    public Realm.Transfer addMovie(
+    public Object addMovie(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/addmovie/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::addMovie);
+    }
+
+    private void addMovie(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         Movie o = new Movie();
@@ -494,17 +1077,19 @@ public class ApiController {
                 s->o.setMinutes(Integer.parseInt(s)));
 
         entityManager.persist(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        evictMovies(u.getRealm());
+        delta.changed(o);
     }
 
     @PostMapping("/{token}/setmovie")
     @Transactional
-    public Realm.Transfer setMovie(
+    public Object setMovie(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/setmovie/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::setMovie);
+    }
+
+    private void setMovie(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
@@ -534,17 +1119,18 @@ public class ApiController {
                 ApiController::canParseAsLong, "must be an integer",
                 s->o.setMinutes(Integer.parseInt(s)));
 
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        delta.changed(o);
     }
 
     @PostMapping("/{token}/rmmovie")
     @Transactional
-    public Realm.Transfer rmMovie(
+    public Object rmMovie(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/rmmovie/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::rmMovie);
+    }
+
+    private void rmMovie(User u, JsonNode data, RealmDelta delta) {
         ensureRole(u, User.Role.ADMIN);
 
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
@@ -555,19 +1141,27 @@ public class ApiController {
             throw new ApiException("No such movie: " + data.get("id"), null);
         }
 
+        // ratings go away with the movie
+        flushBeforeLoading();
+        delta.removed(o.getId());
+        for (Rating r : o.getRatings()) {
+            r.getUser().getRatings().remove(r);
+            delta.changed(r.getUser()).removed(r.getId());
+        }
+
         entityManager.remove(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        evictMovies(u.getRealm());
     }
 
     @PostMapping("/{token}/addgroup")
     @Transactional
-    public Realm.Transfer addGroup(
+    public Object addGroup(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/addgroup/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::addGroup);
+    }
 
+    private void addGroup(User u, JsonNode data, RealmDelta delta) {
         Group g = new Group();
         g.setRealm(u.getRealm());
         u.getRealm().getGroups().add(g);
@@ -586,6 +1180,7 @@ public class ApiController {
             throw new ApiException("Only admins can spoof owner when creating a group", null);
         }
         g.setOwner(owner);
+        addIfLoaded(owner.getManagedGroups(), g);
 
         if (data.has("members") && data.get("members").isArray()) {
             List<User> nextMembers = new ArrayList<>();
@@ -601,20 +1196,23 @@ public class ApiController {
             g.getMembers().clear();
             g.getMembers().addAll(nextMembers);
         }
+        for (User m : g.getMembers()) {
+            m.getGroups().add(g);
+        }
 
         entityManager.persist(g);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        delta.changed(g).changed(g.getMembers());
     }
 
     @PostMapping("/{token}/setgroup")
     @Transactional
-    public Realm.Transfer setGroup(
+    public Object setGroup(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/setgroup/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::setGroup);
+    }
 
+    private void setGroup(User u, JsonNode data, RealmDelta delta) {
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
             throw new ApiException("No ID for group to set: " + data.get("id"), null);
         }
@@ -630,6 +1228,7 @@ public class ApiController {
         checkOptional(data, "name",
                 d->!d.isEmpty(), "cannot be empty",
                 g::setName);
+        delta.changed(g);
         if (data.has("members") && data.get("members").isArray()) {
             List<User> nextMembers = new ArrayList<>();
             Iterator<JsonNode> it = data.get("members").elements();
@@ -641,22 +1240,28 @@ public class ApiController {
                 }
                 nextMembers.add(m);
             }
+            for (User m : g.getMembers()) {
+                m.getGroups().remove(g);
+            }
+            delta.changed(g.getMembers());
             g.getMembers().clear();
             g.getMembers().addAll(nextMembers);
+            for (User m : g.getMembers()) {
+                m.getGroups().add(g);
+            }
+            delta.changed(g.getMembers());
         }
-
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/rmgroup")
     @Transactional
-    public Realm.Transfer rmGroup(
+    public Object rmGroup(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/rmgroup/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::rmGroup);
+    }
 
+    private void rmGroup(User u, JsonNode data, RealmDelta delta) {
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
             throw new ApiException("No ID for group to set: " + data.get("id"), null);
         }
@@ -668,19 +1273,31 @@ public class ApiController {
         if (g.getOwner().getId() != u.getId() && ! u.hasRole(User.Role.ADMIN)) {
             throw new ApiException("Not your group, and you are not admin: " + data.get("id"), null);
         }
+
+        // requests go away with the group
+        flushBeforeLoading();
+        delta.removed(g.getId());
+        for (User m : g.getMembers()) {
+            m.getGroups().remove(g);
+            delta.changed(m);
+        }
+        for (Request r : g.getRequests()) {
+            r.getUser().getRequests().remove(r);
+            delta.changed(r.getUser()).removed(r.getId());
+        }
+
         entityManager.remove(g);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/addrating")
     @Transactional
-    public Realm.Transfer addRating(
+    public Object addRating(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/addrating/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::addRating);
+    }
 
+    private void addRating(User u, JsonNode data, RealmDelta delta) {
         checkMandatory(data, "movie",
                 ApiController::canParseAsLong, "is not a valid movie ID",
                 null);
@@ -698,14 +1315,33 @@ public class ApiController {
             throw new ApiException("Only admin can touch other's ratings: " + data.get("user"), null);
         }
 
-        // max 1 rating per user/movie pair
-        Rating o = r.getRatings().stream()
-                .filter(x -> x.getMovie().getId() == m.getId())
-                .findFirst()
-                .orElse(new Rating());
-
+        // max 1 rating per user/movie pair; it may have been created earlier in this batch
+        Rating found = delta.findCreated(Rating.class, r.getId(), m.getId());
+        if (found == null) {
+            found = entityManager.createNamedQuery("Rating.byUserAndMovie", Rating.class)
+                    .setParameter("userId", r.getId())
+                    .setParameter("movieId", m.getId())
+                    .getResultList().stream()
+                    .findFirst()
+                    .orElse(null);
+        }
+        if (found != null && ! entityManager.contains(found)) {
+            // removed earlier in this batch, but not yet flushed: since Hibernate sends
+            // inserts before deletes, the delete must go first to free the user/movie pair
+            entityManager.flush();
+            found = null;
+        }
+        Rating o = found != null ? found : new Rating();
+        delta.changed(o);
+
+        if (o.getId() == 0) {
+            delta.created(o, r.getId(), m.getId());
+            addIfLoaded(u.getRealm().getRatings(), o);
+            addIfLoaded(r.getRatings(), o);
+            addIfLoaded(m.getRatings(), o);
+            delta.changed(r, m);
+        }
         o.setRealm(u.getRealm());
-        u.getRealm().getRatings().add(o);
         o.setUser(r);
         o.setMovie(m);
         o.setLabels(data.get("labels").asText()); // no validation
@@ -714,18 +1350,17 @@ public class ApiController {
                 v -> o.setRating(Integer.parseInt(v)));
 
         entityManager.persist(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/setrating")
     @Transactional
-    public Realm.Transfer setRating(
+    public Object setRating(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/setrating/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::setRating);
+    }
 
+    private void setRating(User u, JsonNode data, RealmDelta delta) {
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
             throw new ApiException("No ID for rating to set: " + data.get("id"), null);
         }
@@ -743,17 +1378,18 @@ public class ApiController {
                 ApiController::isValidRating, "must be integer in range 0-5, or -1 for 'none'",
                 v -> o.setRating(Integer.parseInt(v)));
 
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        delta.changed(o);
     }
 
     @PostMapping("/{token}/rmrating")
     @Transactional
-    public Realm.Transfer rmRating(@PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/rmrating/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+    public Object rmRating(
+            @PathVariable String token,
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::rmRating);
+    }
 
+    private void rmRating(User u, JsonNode data, RealmDelta delta) {
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
             throw new ApiException("No ID for rating to rm: " + data.get("id"), null);
         }
@@ -766,23 +1402,26 @@ public class ApiController {
             throw new ApiException("Not your rating, and you are not admin: " + data.get("id"), null);
         }
 
+        o.getUser().getRatings().remove(o);
+        o.getMovie().getRatings().remove(o);
         entityManager.remove(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
+        delta.changed(o.getUser(), o.getMovie())
+                .removed(o.getId());
     }
 
     @PostMapping("/{token}/addrequest")
     @Transactional
-    public Realm.Transfer addRequest(
+    public Object addRequest(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/addjob/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::addRequest);
+    }
 
+    private void addRequest(User u, JsonNode data, RealmDelta delta) {
         checkMandatory(data, "user",
                 ApiController::canParseAsLong, "is not a valid user ID",
                 null);
-        checkMandatory(data, "user",
+        checkMandatory(data, "group",
                 ApiController::canParseAsLong, "is not a valid group ID",
                 null);
         User ru = entityManager.find(User.class, data.get("user").asLong());
@@ -791,18 +1430,30 @@ public class ApiController {
         }
         Group rg = entityManager.find(Group.class, data.get("group").asLong());
         if (rg == null || rg.getRealm().getId() != u.getRealm().getId()) {
-            throw new ApiException("No such group: " + data.get("user"), null);
+            throw new ApiException("No such group: " + data.get("group"), null);
         }
         String statusString = checkMandatory(data, "status",
                 d->Request.Status.valueOf(d.toUpperCase()) != null,
                 "must be one of " + Arrays.toString(Request.Status.values()),
                 null);
 
-        // max 1 request per user/group pair
-        Request o = ru.getRequests().stream()
-                .filter(x -> x.getGroup().getId() == rg.getId())
-                .findFirst()
-                .orElse(new Request());
+        // max 1 request per user/group pair; it may have been created earlier in this batch
+        Request found = delta.findCreated(Request.class, ru.getId(), rg.getId());
+        if (found == null) {
+            found = entityManager.createNamedQuery("Request.byUserAndGroup", Request.class)
+                    .setParameter("userId", ru.getId())
+                    .setParameter("groupId", rg.getId())
+                    .getResultList().stream()
+                    .findFirst()
+                    .orElse(null);
+        }
+        if (found != null && ! entityManager.contains(found)) {
+            // removed earlier in this batch, but not yet flushed: since Hibernate sends
+            // inserts before deletes, the delete must go first to free the user/group pair
+            entityManager.flush();
+            found = null;
+        }
+        Request o = found != null ? found : new Request();
         o.setRealm(u.getRealm());
         o.setUser(ru);
         o.setGroup(rg);
@@ -820,7 +1471,9 @@ public class ApiController {
             if (u.hasRole(User.Role.ADMIN)) {
                 ru.getGroups().add(rg);
                 rg.getMembers().add(ru);
-                return u.getRealm().toTransfer(); // early exit, no need to create request
+                // early exit, no need to create request
+                delta.changed(ru, rg);
+                return;
             } else {
                 throw new ApiException("Only admin can add people to groups with ACCEPT status", null);
             }
@@ -840,22 +1493,26 @@ public class ApiController {
             }
         }
 
-        u.getRealm().getRequests().add(o);
-        ru.getRequests().add(o);
-        rg.getRequests().add(o);
+        delta.changed(o);
+        if (o.getId() == 0) {
+            delta.created(o, ru.getId(), rg.getId());
+            addIfLoaded(u.getRealm().getRequests(), o);
+            addIfLoaded(ru.getRequests(), o);
+            addIfLoaded(rg.getRequests(), o);
+            delta.changed(ru, rg);
+        }
         entityManager.persist(o);
-        entityManager.flush();
-        return u.getRealm().toTransfer();
     }
 
     @PostMapping("/{token}/setrequest")
     @Transactional
-    public Realm.Transfer setRequest(
+    public Object setRequest(
             @PathVariable String token,
-            @RequestBody JsonNode data) throws JsonProcessingException {
-        log.info(token + "/setjob/" + new ObjectMapper().writeValueAsString(data));
-        User u = resolveTokenOrBail(token);
+            @RequestBody JsonNode data) {
+        return mutate(token, data, this::setRequest);
+    }
 
+    private void setRequest(User u, JsonNode data, RealmDelta delta) {
         if ( ! data.has("id") || ! data.get("id").canConvertToLong()) {
             throw new ApiException("No ID for request to set: " + data.get("id"), null);
         }
@@ -897,13 +1554,108 @@ public class ApiController {
         o.getUser().getRequests().remove(o);
         u.getRealm().getRequests().remove(o);
         entityManager.remove(o);
+        delta.changed(o.getUser(), o.getGroup())
+                .removed(o.getId());
+    }
+
+    /**
+     * Runs several mutations, in order, within a single transaction; if any fails,
+     * none is applied. Expects an array of {"op": "addrating", "data": {...}},
+     * where op is any of the add, set or rm endpoints for users, movies,
+     * groups, ratings or requests; and responds once, as those would.
+     */
+    @PostMapping("/{token}/batch")
+    public CompletableFuture<Object> batch(
+            @PathVariable String token,
+            @RequestBody JsonNode data) {
+        if ( ! data.isArray()) {
+            throw new ApiException("Expected an array of operations", null);
+        }
+
+        // passwords to set are hashed in parallel, up-front; only admins can set them
+        List<JsonNode> withPasswords = new ArrayList<>();
+        User u = readOnlyTransaction.execute(s -> resolveTokenOrBail(token));
+        if (u.hasRole(User.Role.ADMIN)) {
+            for (JsonNode op : data) {
+                if ("adduser".equals(op.path("op").asText())
+                        || "setuser".equals(op.path("op").asText())) {
+                    withPasswords.add(op.path("data"));
+                }
+            }
+        }
+        return afterHashing(withPasswords, () -> runBatch(token, data));
+    }
+
+    private Object runBatch(String token, JsonNode data) {
+        User u = resolveTokenOrBail(token);
+
+        // flushing only when needed (see flushBeforeLoading) allows inserts and updates
+        // to be sent in JDBC batches
+        entityManager.setFlushMode(FlushModeType.COMMIT);
+        RealmDelta delta = new RealmDelta(u.getRealm());
+        for (int i = 0; i < data.size(); i++) {
+            JsonNode op = data.get(i);
+            String name = op.path("op").asText();
+            Mutation mutation = mutations.get(name);
+            if (mutation == null || ! op.has("data")) {
+                throw new ApiException("Operation " + i + ": expected op (one of "
+                        + new TreeSet<>(mutations.keySet()) + ") and data", null);
+            }
+            try {
+                mutation.apply(u, op.get("data"), delta);
+            } catch (ApiAuthException e) {
+                throw e;
+            } catch (ApiException e) {
+                throw new ApiException("Operation " + i + " (" + name + "): " + e.getMessage(), null);
+            }
+        }
+        // so that the delta, and the realm's version, see every change
         entityManager.flush();
-        return u.getRealm().toTransfer();
+        return respond(u, delta);
     }
 
-    @PostMapping("/{token}/list")
-    public Realm.Transfer list(@PathVariable String token) {
-        log.info(token + "/list");
-        return resolveTokenOrBail(token).getRealm().toTransfer();
+    /**
+     * Returns the requester's full realm. Honors If-None-Match with the realm's
+     * entity tag, and re-uses the last serialization of the realm if it has not
+     * changed since then. Otherwise, the realm is streamed as it is read.
+     * Only reads, in read-only transactions; and only if it cannot answer from memory.
+     */
+    @RequestMapping(value = "/{token}/list", method = {RequestMethod.GET, RequestMethod.POST})
+    public void list(
+            @PathVariable String token,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            HttpServletResponse response) throws IOException {
+        // a cached token allows answering from memory alone
+        TokenCache.Entry cached = tokens.get(token);
+        long realmId = cached != null ?
+                cached.realmId :
+                readOnlyTransaction.execute(s -> resolveTokenOrBail(token).getRealm().getId());
+        long version = snapshots.version(realmId, () -> readOnlyTransaction.execute(s ->
+                entityManager.createNamedQuery("Realm.version", Long.class)
+                        .setParameter("id", realmId)
+                        .getSingleResult()));
+        String etag = RealmSnapshots.etag(realmId, version);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (ifNoneMatch != null && Arrays.stream(ifNoneMatch.split(","))
+                .map(t -> t.trim().replaceFirst("^W/", ""))
+                .anyMatch(t -> t.equals(etag) || t.equals("*"))) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        byte[] json = snapshots.get(realmId, version);
+        if (json != null) {
+            response.setContentLength(json.length);
+            response.getOutputStream().write(json);
+            return;
+        }
+
+        // version was read before the realm, so json can never be older than etag claims
+        RealmSnapshots.Recorder recorder = snapshots.recorder(realmId, version, response.getOutputStream());
+        try (JsonGenerator g = mapper.getFactory().createGenerator(recorder)) {
+            realmWriter.write(realmId, g);
+        }
+        recorder.save();
     }
 }
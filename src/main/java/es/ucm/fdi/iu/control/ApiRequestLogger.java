@@ -0,0 +1,131 @@
+package es.ucm.fdi.iu.control;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logs one line per API request, once it completes: endpoint, status, time taken
+ * and request body (if any).
+ *
+ * Tokens are never logged (endpoints are logged as mapped, with "{token}"), and
+ * body fields such as passwords or tokens are redacted. Nothing is serialized
+ * unless the line is actually logged; and only a fraction of successful requests,
+ * set by es.ucm.fdi.request-log-sample, is logged at all. Failed requests always are.
+ *
+ * Registered as an interceptor for /api/** in AppConfig.
+ */
+@ControllerAdvice(assignableTypes = ApiController.class)
+public class ApiRequestLogger extends RequestBodyAdviceAdapter implements HandlerInterceptor {
+
+    private static final Logger log = LogManager.getLogger(ApiRequestLogger.class);
+
+    private static final String BODY_ATTRIBUTE = ApiRequestLogger.class.getName() + ".body";
+    private static final String START_ATTRIBUTE = ApiRequestLogger.class.getName() + ".start";
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    // fraction of successful requests to log, between 0 and 1
+    @Value("${es.ucm.fdi.request-log-sample:1}")
+    private double sample;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // asynchronous requests are dispatched (and intercepted) again once completed
+        if (log.isInfoEnabled() && request.getAttribute(START_ATTRIBUTE) == null) {
+            request.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean supports(MethodParameter methodParameter, Type targetType,
+                            Class<? extends HttpMessageConverter<?>> converterType) {
+        return log.isInfoEnabled();
+    }
+
+    @Override
+    public Object afterBodyRead(Object body, HttpInputMessage inputMessage, MethodParameter parameter,
+                                Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        // only a reference is kept; it is serialized (and redacted) only if logged
+        RequestContextHolder.currentRequestAttributes()
+                .setAttribute(BODY_ATTRIBUTE, body, RequestAttributes.SCOPE_REQUEST);
+        return body;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+                                Object handler, Exception ex) {
+        Long start = (Long) request.getAttribute(START_ATTRIBUTE);
+        boolean failed = ex != null || response.getStatus() >= 400;
+        if (start == null || ( ! failed && ThreadLocalRandom.current().nextDouble() >= sample)) {
+            return;
+        }
+        Object body = request.getAttribute(BODY_ATTRIBUTE);
+        log.info("api endpoint={} status={} ms={} body={}",
+                () -> endpoint(request),
+                () -> ex != null ? ex.getClass().getSimpleName() : response.getStatus(),
+                () -> (System.nanoTime() - start) / 1_000_000,
+                () -> body == null ? "-" : redacted(body));
+    }
+
+    private static String endpoint(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : "?";
+    }
+
+    private String redacted(Object body) {
+        try {
+            JsonNode node = mapper.valueToTree(body);
+            if (node != null && node.isContainerNode()) {
+                node = node.deepCopy();
+                redact(node);
+            }
+            return mapper.writeValueAsString(node);
+        } catch (IllegalArgumentException | JsonProcessingException e) {
+            return "(unprintable: " + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Replaces, anywhere within a node, the values of fields that hold secrets
+     */
+    private static void redact(JsonNode node) {
+        if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> e = it.next();
+                String name = e.getKey().toLowerCase();
+                if (name.contains("password") || name.contains("token")) {
+                    ((ObjectNode) node).put(e.getKey(), "***");
+                } else {
+                    redact(e.getValue());
+                }
+            }
+        } else if (node.isArray()) {
+            node.forEach(ApiRequestLogger::redact);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package es.ucm.fdi.iu.control;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.ucm.fdi.iu.LocalData;
+import es.ucm.fdi.iu.model.GenSequenceGenerator;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up the database into gzipped SQL scripts, in the background, one at a time.
+ * Backups read a consistent snapshot of the database, in a read-only transaction;
+ * so API requests go on as usual while they run.
+ *
+ * Full backups are written by H2's SCRIPT, and can be restored on their own.
+ * Incremental backups only include realms that have changed (or been removed)
+ * since the last backup of either kind, as told by realm versions; and must be
+ * restored, in order, on top of the backups that came before them.
+ *
+ * Backups are written to LocalData's "backups" folder, under temporary names
+ * that only change once complete. They can be restored here too, in the background
+ * (see Restorer) or right away (with RUNSCRIPT); but never while a backup is
+ * running, nor the other way around.
+ */
+@Component
+public class Backups {
+
+    private static final Logger log = LogManager.getLogger(Backups.class);
+
+    private static final String FOLDER = "backups";
+    // realm versions as of the last backup, by realm id
+    private static final String VERSIONS_FILE = "versions.json";
+    // newest jobs that are remembered, and can be queried
+    private static final int MAX_JOBS = 20;
+
+    /**
+     * Tables with per-realm rows, in an order that respects foreign keys, and
+     * the conditions to select rows for realms in :ids
+     */
+    private static final String[][] REALM_TABLES = {
+            {"realm", "id IN (:ids)"},
+            {"user", "realm_id IN (:ids)"},
+            {"movie", "realm_id IN (:ids)"},
+            {"cgroup", "realm_id IN (:ids)"},
+            {"cgroup_members", "groups_id IN (SELECT id FROM cgroup WHERE realm_id IN (:ids))"},
+            {"rating", "realm_id IN (:ids)"},
+            {"request", "realm_id IN (:ids)"},
+    };
+
+    public enum Type { FULL, INCREMENTAL, RESTORE }
+
+    public enum Status { RUNNING, DONE, FAILED }
+
+    @Getter
+    public static class Job {
+        private final long id;
+        private final Type type;
+        private final String file;
+        private final long started = System.currentTimeMillis();
+        private volatile Status status = Status.RUNNING;
+        private volatile long finished;
+        private volatile long bytes;
+        // realms included, for incremental backups; or -1 otherwise
+        private volatile int realms = -1;
+        // statements run so far, and fraction of the file read, for restores
+        private volatile long statements;
+        private volatile double progress;
+        private volatile String error;
+
+        private Job(long id, Type type, String file) {
+            this.id = id;
+            this.type = type;
+            this.file = file;
+        }
+
+        void progress(long statements, double progress) {
+            this.statements = statements;
+            this.progress = progress;
+        }
+    }
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private LocalData localData;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private Restorer restorer;
+
+    // reads a single, consistent snapshot, on the read pool (see DataSourceConfig)
+    private TransactionTemplate snapshot;
+    // runs RUNSCRIPT, which must be atomic
+    private TransactionTemplate transaction;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "backup");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, Job> jobs = Collections.synchronizedMap(new LinkedHashMap<Long, Job>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+            return size() > MAX_JOBS;
+        }
+    });
+    private Job current;
+
+    @PostConstruct
+    private void init() {
+        snapshot = new TransactionTemplate(transactionManager);
+        snapshot.setReadOnly(true);
+        snapshot.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        transaction = new TransactionTemplate(transactionManager);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a backup, unless a backup or restore is already running
+     * @throws IllegalStateException if a job is already running
+     */
+    public Job start(boolean incremental) {
+        return submit(incremental ? Type.INCREMENTAL : Type.FULL, id ->
+                "backup-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+                        + "-" + id + (incremental ? "-incremental" : "-full") + ".sql.gz",
+                this::run);
+    }
+
+    /**
+     * Starts restoring a backup (see Restorer), unless a backup or restore is already
+     * running. Once the restore finishes, successfully or not, calls a callback.
+     * @throws IllegalStateException if a job is already running
+     */
+    public Job restore(File file, Runnable whenDone) {
+        return submit(Type.RESTORE, id -> file.getName(), job -> {
+            try {
+                restorer.restore(file, job);
+                job.status = Status.DONE;
+                log.info("Restored {} with {} statements", file, job.statements);
+            } catch (Exception e) {
+                log.warn("Restore " + job.id + " failed", e);
+                job.error = e.getMessage();
+                job.status = Status.FAILED;
+            } finally {
+                job.finished = System.currentTimeMillis();
+                reset();
+                whenDone.run();
+            }
+        });
+    }
+
+    /**
+     * Restores a backup right away, with RUNSCRIPT: on the calling thread, and in a
+     * single transaction. Otherwise, as restore(); but returns the finished job.
+     * @throws IllegalStateException if a job is already running
+     */
+    public Job restoreNow(File file, Runnable whenDone) {
+        Job job = claim(Type.RESTORE, id -> file.getName());
+        try {
+            transaction.executeWithoutResult(s -> entityManager.createNativeQuery(
+                    "RUNSCRIPT FROM '" + file.getAbsolutePath().replace("'", "''") + "'"
+                    + (file.getName().endsWith(".gz") ? " COMPRESSION GZIP" : "")).executeUpdate());
+            job.progress = 1;
+            job.status = Status.DONE;
+            log.info("Restored {} with RUNSCRIPT", file);
+        } catch (RuntimeException e) {
+            job.error = e.getMessage();
+            job.status = Status.FAILED;
+            throw e;
+        } finally {
+            job.finished = System.currentTimeMillis();
+            reset();
+            whenDone.run();
+        }
+        return job;
+    }
+
+    private Job submit(Type type, LongFunction<String> name, Consumer<Job> task) {
+        Job job = claim(type, name);
+        executor.execute(() -> task.accept(job));
+        return job;
+    }
+
+    /**
+     * Creates a job, which becomes the running one
+     * @throws IllegalStateException if a job is already running
+     */
+    private synchronized Job claim(Type type, LongFunction<String> name) {
+        if (current != null && current.status == Status.RUNNING) {
+            throw new IllegalStateException("Job " + current.id + " is still running");
+        }
+        long id = ids.incrementAndGet();
+        Job job = new Job(id, type, name.apply(id));
+        current = job;
+        jobs.put(id, job);
+        return job;
+    }
+
+    public Job get(long id) {
+        return jobs.get(id);
+    }
+
+    public List<Job> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * Returns a backup file, given its name, or an absolute path
+     */
+    public File file(String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? f : localData.getFile(FOLDER, f.getName());
+    }
+
+    /**
+     * Forgets realm versions, so that the next incremental backup includes all
+     * realms; for example, because the database has been restored.
+     */
+    public void reset() {
+        localData.getFile(FOLDER, VERSIONS_FILE).delete();
+    }
+
+    private void run(Job job) {
+        File target = localData.getFile(FOLDER, job.file);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(target.getParentFile().toPath(), "tmp-", ".sql.gz");
+            Path out = tmp;
+            Map<Long, Long> versions = snapshot.execute(s ->
+                    entityManager.unwrap(Session.class).doReturningWork(c -> job.type == Type.INCREMENTAL ?
+                            writeIncremental(c, out, job) :
+                            writeFull(c, out)));
+            Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            saveVersions(versions);
+            job.bytes = target.length();
+            job.progress = 1;
+            job.status = Status.DONE;
+            log.info("Backup {} written to {} ({} bytes)", job.id, target, job.bytes);
+        } catch (Exception e) {
+            log.warn("Backup " + job.id + " failed", e);
+            job.error = e.getMessage();
+            job.status = Status.FAILED;
+        } finally {
+            job.finished = System.currentTimeMillis();
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    log.warn("Could not remove " + tmp, e);
+                }
+            }
+        }
+    }
+
+    private static Map<Long, Long> writeFull(Connection c, Path out) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute("SCRIPT DROP TO '" + out.toAbsolutePath().toString().replace("'", "''")
+                    + "' COMPRESSION GZIP");
+        }
+        return readVersions(c);
+    }
+
+    /**
+     * Writes statements that replace the rows of all realms that changed since the
+     * last backup, and remove realms that no longer exist.
+     */
+    private Map<Long, Long> writeIncremental(Connection c, Path out, Job job) throws SQLException {
+        Map<Long, Long> previous = loadVersions();
+        Map<Long, Long> versions = readVersions(c);
+        Set<Long> changed = new TreeSet<>(previous.keySet());
+        changed.removeAll(versions.keySet());
+        versions.forEach((id, v) -> {
+            if ( ! v.equals(previous.get(id))) {
+                changed.add(id);
+            }
+        });
+        job.realms = changed.size();
+
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(out)), StandardCharsets.UTF_8))) {
+            w.write("-- realms changed since previous backup: " + changed + "\n");
+            if ( ! changed.isEmpty()) {
+                String ids = changed.stream().map(String::valueOf).collect(Collectors.joining(","));
+                for (int i = REALM_TABLES.length - 1; i >= 0; i--) {
+                    w.write("DELETE FROM " + REALM_TABLES[i][0] + " WHERE "
+                            + REALM_TABLES[i][1].replace(":ids", ids) + ";\n");
+                }
+                for (String[] table : REALM_TABLES) {
+                    writeInserts(c, w, table[0], table[1].replace(":ids", ids));
+                }
+            }
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT CURRENT_VALUE, INCREMENT "
+                         + "FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = '"
+                         + GenSequenceGenerator.SEQUENCE_NAME.toUpperCase() + "'")) {
+                if (rs.next()) {
+                    w.write("ALTER SEQUENCE " + GenSequenceGenerator.SEQUENCE_NAME
+                            + " RESTART WITH " + (rs.getLong(1) + rs.getLong(2)) + ";\n");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return versions;
+    }
+
+    private static void writeInserts(Connection c, Writer w, String table, String where)
+            throws SQLException, IOException {
+        try (PreparedStatement st = c.prepareStatement(
+                "SELECT * FROM " + table + " WHERE " + where + " ORDER BY 1, 2")) {
+            st.setFetchSize(256);
+            try (ResultSet rs = st.executeQuery()) {
+                ResultSetMetaData md = rs.getMetaData();
+                StringBuilder columns = new StringBuilder();
+                for (int i = 1; i <= md.getColumnCount(); i++) {
+                    columns.append(i > 1 ? ", " : "").append(md.getColumnName(i));
+                }
+                while (rs.next()) {
+                    StringBuilder sb = new StringBuilder("INSERT INTO ").append(table)
+                            .append(" (").append(columns).append(") VALUES (");
+                    for (int i = 1; i <= md.getColumnCount(); i++) {
+                        sb.append(i > 1 ? ", " : "").append(literal(rs.getObject(i)));
+                    }
+                    w.write(sb.append(");\n").toString());
+                }
+            }
+        }
+    }
+
+    private static String literal(Object o) {
+        if (o == null) {
+            return "NULL";
+        } else if (o instanceof Number || o instanceof Boolean) {
+            return o.toString();
+        } else {
+            return "'" + o.toString().replace("'", "''") + "'";
+        }
+    }
+
+    private static Map<Long, Long> readVersions(Connection c) throws SQLException {
+        Map<Long, Long> versions = new HashMap<>();
+        try (Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, version FROM realm")) {
+            while (rs.next()) {
+                versions.put(rs.getLong(1), rs.getLong(2));
+            }
+        }
+        return versions;
+    }
+
+    private Map<Long, Long> loadVersions() {
+        File f = localData.getFile(FOLDER, VERSIONS_FILE);
+        if ( ! f.exists()) {
+            return new HashMap<>();
+        }
+        try {
+            return mapper.readValue(f, new TypeReference<Map<Long, Long>>() {});
+        } catch (IOException e) {
+            log.warn("Could not read " + f + "; next backup will include all realms", e);
+            return new HashMap<>();
+        }
+    }
+
+    private void saveVersions(Map<Long, Long> versions) throws IOException {
+        File f = localData.getFile(FOLDER, VERSIONS_FILE);
+        Path tmp = Files.createTempFile(f.getParentFile().toPath(), "tmp-", ".json");
+        mapper.writeValue(tmp.toFile(), versions);
+        Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,130 @@
+package es.ucm.fdi.iu.control;
+
+import es.ucm.fdi.iu.model.GenSequenceGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * Copies the contents of one realm into another, with one INSERT ... SELECT
+ * per table; so that cloning takes the same number of statements no matter
+ * how large the realm is.
+ *
+ * Copies get new ids from the same sequence as Hibernate, reserving blocks of ids
+ * in the same way (see GenSequenceGenerator). Old ids are mapped to new ones
+ * through a temporary table, which is used to rewrite references (the owner of
+ * a group, the user and movie of a rating, and so on).
+ *
+ * Runs in the caller's transaction, bypassing the persistence context; so any
+ * already-loaded collections of the target realm will not include the copies.
+ */
+@Component
+public class RealmCloner {
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private Environment env;
+
+    /**
+     * Copies all movies of a realm into another; and, optionally, its users
+     * (with new usernames, no tokens, and never as ROOT), groups and ratings.
+     * Groups and ratings can only be copied along with users.
+     */
+    public void copy(long from, long to, boolean users, boolean groups, boolean ratings) {
+        if ((groups || ratings) && ! users) {
+            throw new IllegalArgumentException("Cannot copy groups or ratings without users");
+        }
+        entityManager.flush();
+        // constraints are named, since auto-generated names could clash with those in a restored backup
+        sql("CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS clone_ids ("
+                + "old_id BIGINT CONSTRAINT clone_ids_pk PRIMARY KEY, new_id BIGINT NOT NULL) "
+                + "TRANSACTIONAL", from, to);
+        sql("CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS clone_blocks ("
+                + "block BIGINT CONSTRAINT clone_blocks_pk PRIMARY KEY, base BIGINT NOT NULL) "
+                + "TRANSACTIONAL", from, to);
+        sql("DELETE FROM clone_ids", from, to);
+        mapIds("movie", from);
+        sql("INSERT INTO movie (id, actors, director, imdb, minutes, name, year, realm_id) "
+                + "SELECT c.new_id, o.actors, o.director, o.imdb, o.minutes, o.name, o.year, :to "
+                + "FROM movie o JOIN clone_ids c ON c.old_id = o.id", from, to);
+        if (users) {
+            // usernames are global, and so must change; tokens are generated on next login
+            mapIds("user", from);
+            sql("INSERT INTO user (id, enabled, password, roles, token, username, realm_id) "
+                    + "SELECT c.new_id, o.enabled, o.password, "
+                    + "TRIM(BOTH ',' FROM REPLACE(',' || o.roles || ',', ',ROOT,', ',')), "
+                    + "NULL, o.username || '_' || :to, :to "
+                    + "FROM user o JOIN clone_ids c ON c.old_id = o.id", from, to);
+        }
+        if (groups) {
+            mapIds("cgroup", from);
+            sql("INSERT INTO cgroup (id, name, owner_id, realm_id) "
+                    + "SELECT c.new_id, o.name, co.new_id, :to "
+                    + "FROM cgroup o JOIN clone_ids c ON c.old_id = o.id "
+                    + "JOIN clone_ids co ON co.old_id = o.owner_id", from, to);
+            sql("INSERT INTO cgroup_members (groups_id, members_id) "
+                    + "SELECT cg.new_id, cm.new_id "
+                    + "FROM cgroup_members o JOIN clone_ids cg ON cg.old_id = o.groups_id "
+                    + "JOIN clone_ids cm ON cm.old_id = o.members_id", from, to);
+        }
+        if (ratings) {
+            mapIds("rating", from);
+            sql("INSERT INTO rating (id, labels, rating, movie_id, user_id, realm_id) "
+                    + "SELECT c.new_id, o.labels, o.rating, cm.new_id, cu.new_id, :to "
+                    + "FROM rating o JOIN clone_ids c ON c.old_id = o.id "
+                    + "JOIN clone_ids cm ON cm.old_id = o.movie_id "
+                    + "JOIN clone_ids cu ON cu.old_id = o.user_id", from, to);
+        }
+        sql("DELETE FROM clone_ids", from, to);
+        sql("DELETE FROM clone_blocks", from, to);
+    }
+
+    /**
+     * Assigns new ids to all rows of a table that belong to a realm. Reads the
+     * sequence once per block of ids, and numbers rows within each block.
+     */
+    private void mapIds(String table, long from) {
+        int blockSize = env.getProperty(GenSequenceGenerator.BLOCK_SIZE,
+                Integer.class, GenSequenceGenerator.DEFAULT_BLOCK_SIZE);
+        long rows = ((Number) entityManager.createNativeQuery(
+                "SELECT COUNT(*) FROM " + table + " WHERE realm_id = :from")
+                .setParameter("from", from)
+                .getSingleResult()).longValue();
+        if (rows == 0) {
+            return;
+        }
+        sql("DELETE FROM clone_blocks", from, 0);
+        entityManager.createNativeQuery("INSERT INTO clone_blocks (block, base) "
+                + "SELECT x - 1, NEXT VALUE FOR " + GenSequenceGenerator.SEQUENCE_NAME + " "
+                + "FROM SYSTEM_RANGE(1, :blocks)")
+                .setParameter("blocks", (rows + blockSize - 1) / blockSize)
+                .executeUpdate();
+        entityManager.createNativeQuery("INSERT INTO clone_ids (old_id, new_id) "
+                + "SELECT o.id, b.base + MOD(o.n, :size) FROM ("
+                + "SELECT id, ROW_NUMBER() OVER (ORDER BY id) - 1 AS n "
+                + "FROM " + table + " WHERE realm_id = :from) o "
+                + "JOIN clone_blocks b ON b.block = o.n / :size")
+                .setParameter("from", from)
+                .setParameter("size", blockSize)
+                .executeUpdate();
+    }
+
+    /**
+     * Runs a statement, binding :from and :to if it uses them
+     */
+    private void sql(String sql, long from, long to) {
+        Query q = entityManager.createNativeQuery(sql);
+        if (sql.contains(":from")) {
+            q.setParameter("from", from);
+        }
+        if (sql.contains(":to")) {
+            q.setParameter("to", to);
+        }
+        q.executeUpdate();
+    }
+}
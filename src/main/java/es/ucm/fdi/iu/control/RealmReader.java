@@ -0,0 +1,346 @@
+package es.ucm.fdi.iu.control;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import es.ucm.fdi.iu.model.GenSequenceGenerator;
+import es.ucm.fdi.iu.model.Request;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports a realm, as exported by RealmWriter.export(), into a new realm; reading
+ * it one entity at a time, so that memory use does not depend on realm size. The
+ * parser may read JSON or any binary equivalent (Smile, CBOR).
+ *
+ * Rows get new ids, reserved from the shared sequence just like Hibernate and
+ * RealmCloner do (see GenSequenceGenerator). Old ids are mapped to new ones through
+ * a temporary table, which is used to rewrite references as rows are inserted;
+ * so sections must come in the order that RealmWriter writes them. Rows are
+ * inserted in JDBC batches.
+ *
+ * As with RealmCloner, users keep their usernames (which must therefore be free),
+ * but not their tokens, and never keep the ROOT role. The lists of ids within
+ * users and movies are ignored, since they repeat what other sections say.
+ *
+ * Runs in the caller's transaction, bypassing the persistence context.
+ */
+@Component
+public class RealmReader {
+
+    // rows inserted per JDBC batch
+    private static final int BATCH_SIZE = 256;
+
+    // sections, in the order they must appear; each only refers to those before it
+    private static final List<String> SECTIONS =
+            Arrays.asList("users", "groups", "movies", "ratings", "requests");
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private Environment env;
+
+    /**
+     * Reads a realm from a parser, positioned before its first token, and
+     * creates a new realm with its contents.
+     *
+     * @param name for the new realm; or null to keep the exported name
+     * @return the id of the new realm, and the number of rows imported in each section
+     * @throws IllegalArgumentException if the export is not valid
+     */
+    public Map<String, Object> read(JsonParser parser, String name) {
+        entityManager.flush();
+        return entityManager.unwrap(Session.class).doReturningWork(c -> {
+            try {
+                return new Import(c, name).read(parser);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * State of a single import
+     */
+    private class Import {
+        private final Connection c;
+        private final int blockSize = env.getProperty(GenSequenceGenerator.BLOCK_SIZE,
+                Integer.class, GenSequenceGenerator.DEFAULT_BLOCK_SIZE);
+        // rows imported, by section
+        private final Map<String, Integer> counts = new LinkedHashMap<>();
+        private String name;
+        private long realmId = -1;
+        private int section = 0;
+        // ids reserved from the sequence, but not yet used
+        private long nextId;
+        private long lastId = -1;
+
+        private Import(Connection c, String name) {
+            this.c = c;
+            this.name = name;
+        }
+
+        private Map<String, Object> read(JsonParser p) throws IOException, SQLException {
+            sql("CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS import_ids ("
+                    + "kind CHAR(1), old_id BIGINT, new_id BIGINT NOT NULL, "
+                    + "CONSTRAINT import_ids_pk PRIMARY KEY (kind, old_id)) TRANSACTIONAL");
+            sql("DELETE FROM import_ids");
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a realm object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                switch (field) {
+                    case "format":
+                        if (p.getIntValue() != RealmWriter.EXPORT_FORMAT) {
+                            throw new IllegalArgumentException("Unsupported export format: " + p.getText());
+                        }
+                        break;
+                    case "name":
+                        if (name == null) {
+                            name = p.getText();
+                        }
+                        break;
+                    case "users": readSection(p, field, this::user); break;
+                    case "groups": readSection(p, field, this::group); break;
+                    case "movies": readSection(p, field, this::movie); break;
+                    case "ratings": readSection(p, field, this::rating); break;
+                    case "requests": readSection(p, field, this::request); break;
+                    default:
+                        // id, version, or anything else that is not imported
+                        p.skipChildren();
+                }
+            }
+            createRealm();
+            sql("DELETE FROM import_ids");
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", realmId);
+            result.put("name", name);
+            result.putAll(counts);
+            return result;
+        }
+
+        private void readSection(JsonParser p, String field, RowWriter writer)
+                throws IOException, SQLException {
+            int index = SECTIONS.indexOf(field);
+            if (index < section) {
+                throw new IllegalArgumentException("Section " + field + " is out of order; expected "
+                        + SECTIONS);
+            }
+            section = index + 1;
+            if (p.currentToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Section " + field + " must be an array");
+            }
+            createRealm();
+            try (Batches batches = new Batches()) {
+                int rows = 0;
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    JsonNode row = p.readValueAsTree();
+                    writer.write(row, batches);
+                    rows ++;
+                }
+                counts.put(field, rows);
+            }
+        }
+
+        private void user(JsonNode o, Batches b) throws SQLException {
+            long id = newId("u", o, b);
+            String roles = text(o, "role", true).replaceAll("(^|,)ROOT(?=,|$)", "")
+                    .replaceAll("^,", "");
+            b.add("INSERT INTO user (id, enabled, password, roles, token, username, realm_id) "
+                            + "VALUES (?, ?, ?, ?, NULL, ?, ?)",
+                    id, ! o.has("enabled") || o.get("enabled").asBoolean(),
+                    text(o, "password", true), roles, text(o, "username", true), realmId);
+        }
+
+        private void group(JsonNode o, Batches b) throws SQLException {
+            long id = newId("g", o, b);
+            b.add("INSERT INTO cgroup (id, name, owner_id, realm_id) SELECT ?, ?, u.new_id, ? "
+                            + "FROM import_ids u WHERE u.kind = 'u' AND u.old_id = ?",
+                    id, text(o, "name", false), realmId, number(o, "owner"));
+            for (JsonNode member : o.path("members")) {
+                b.add("INSERT INTO cgroup_members (groups_id, members_id) SELECT ?, u.new_id "
+                                + "FROM import_ids u WHERE u.kind = 'u' AND u.old_id = ?",
+                        id, member.asLong());
+            }
+        }
+
+        private void movie(JsonNode o, Batches b) throws SQLException {
+            long id = newId("m", o, b);
+            b.add("INSERT INTO movie (id, actors, director, imdb, minutes, name, year, realm_id) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+                    id, text(o, "actors", false), text(o, "director", false), text(o, "imdb", false),
+                    (int) number(o, "minutes"), text(o, "name", false), (int) number(o, "year"), realmId);
+        }
+
+        private void rating(JsonNode o, Batches b) throws SQLException {
+            int rating = (int) number(o, "rating");
+            String labels = text(o, "labels", false);
+            b.add("INSERT INTO rating (id, labels, rating, movie_id, user_id, realm_id) "
+                            + "SELECT ?, ?, ?, m.new_id, u.new_id, ? FROM import_ids m, import_ids u "
+                            + "WHERE m.kind = 'm' AND m.old_id = ? AND u.kind = 'u' AND u.old_id = ?",
+                    newId(), labels == null || labels.isEmpty() ? null : labels, rating < 0 ? null : rating,
+                    realmId, number(o, "movie"), number(o, "user"));
+        }
+
+        private void request(JsonNode o, Batches b) throws SQLException {
+            Request.Status status;
+            try {
+                status = Request.Status.valueOf(text(o, "status", true));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid request status: " + o.get("status"));
+            }
+            b.add("INSERT INTO request (id, status, group_id, realm_id, user_id) "
+                            + "SELECT ?, ?, g.new_id, ?, u.new_id FROM import_ids g, import_ids u "
+                            + "WHERE g.kind = 'g' AND g.old_id = ? AND u.kind = 'u' AND u.old_id = ?",
+                    newId(), status.ordinal(), realmId, number(o, "group"), number(o, "user"));
+        }
+
+        /**
+         * Reserves a new id for a row that others may refer to, and maps its old id to it
+         */
+        private long newId(String kind, JsonNode o, Batches b) throws SQLException {
+            long id = newId();
+            b.add("INSERT INTO import_ids (kind, old_id, new_id) VALUES (?, ?, ?)",
+                    kind, number(o, "id"), id);
+            return id;
+        }
+
+        /**
+         * Returns an unused id; reading the sequence once per block of ids
+         */
+        private long newId() throws SQLException {
+            if (lastId < 0 || nextId > lastId) {
+                try (Statement st = c.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT NEXT VALUE FOR "
+                             + GenSequenceGenerator.SEQUENCE_NAME)) {
+                    rs.next();
+                    nextId = rs.getLong(1);
+                    lastId = nextId + blockSize - 1;
+                }
+            }
+            return nextId ++;
+        }
+
+        private void createRealm() throws SQLException {
+            if (realmId >= 0) {
+                return;
+            }
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("Realm name must come before its contents");
+            }
+            realmId = newId();
+            try (PreparedStatement st = c.prepareStatement(
+                    "INSERT INTO realm (id, name, version) VALUES (?, ?, 0)")) {
+                st.setLong(1, realmId);
+                st.setString(2, name);
+                st.executeUpdate();
+            }
+        }
+
+        private void sql(String sql) throws SQLException {
+            try (Statement st = c.createStatement()) {
+                st.execute(sql);
+            }
+        }
+
+        /**
+         * Prepared statements with pending batches, in the order they were first
+         * used. Each is run once it has BATCH_SIZE rows; all are run, in order,
+         * on close. Every row must insert exactly one row, or references are wrong.
+         */
+        private class Batches implements AutoCloseable {
+            private final Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+            private final Map<String, Integer> pending = new LinkedHashMap<>();
+
+            private void add(String sql, Object... values) throws SQLException {
+                PreparedStatement st = statements.get(sql);
+                if (st == null) {
+                    st = c.prepareStatement(sql);
+                    statements.put(sql, st);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] == null) {
+                        st.setNull(i + 1, Types.NULL);
+                    } else {
+                        st.setObject(i + 1, values[i]);
+                    }
+                }
+                st.addBatch();
+                int n = pending.merge(sql, 1, Integer::sum);
+                if (n >= BATCH_SIZE) {
+                    // rows added before, via other statements, may be referenced by these
+                    run();
+                }
+            }
+
+            private void run() throws SQLException {
+                for (Map.Entry<String, PreparedStatement> e : statements.entrySet()) {
+                    if (pending.getOrDefault(e.getKey(), 0) == 0) {
+                        continue;
+                    }
+                    for (int count : e.getValue().executeBatch()) {
+                        if (count != 1) {
+                            throw new IllegalArgumentException("Reference to a missing entity in "
+                                    + e.getKey().split(" ")[2]);
+                        }
+                    }
+                    pending.put(e.getKey(), 0);
+                }
+            }
+
+            @Override
+            public void close() throws SQLException {
+                try {
+                    run();
+                } finally {
+                    for (PreparedStatement st : statements.values()) {
+                        st.close();
+                    }
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowWriter {
+        void write(JsonNode row, Import.Batches batches) throws SQLException;
+    }
+
+    private static String text(JsonNode o, String field, boolean mandatory) {
+        JsonNode n = o.get(field);
+        if (n == null || n.isNull()) {
+            if (mandatory) {
+                throw new IllegalArgumentException("Missing " + field + " in " + o);
+            }
+            return null;
+        }
+        return n.asText();
+    }
+
+    private static long number(JsonNode o, String field) {
+        JsonNode n = o.get(field);
+        if (n == null || ! n.canConvertToLong()) {
+            throw new IllegalArgumentException("Missing or invalid " + field + " in " + o);
+        }
+        return n.asLong();
+    }
+}
@@ -0,0 +1,153 @@
+package es.ucm.fdi.iu.control;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the latest committed version of each realm, and of
+ * the last serialized Realm.Transfer for each realm, keyed by that version.
+ *
+ * This allows unchanged realms to be re-sent (or not sent at all, if the client
+ * already has them) without rebuilding anything from the database.
+ */
+@Component
+public class RealmSnapshots {
+
+    private static class Snapshot {
+        private final long version;
+        private final byte[] json;
+
+        private Snapshot(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+    private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    // larger realms are never kept in memory, and are always streamed from the database
+    @Value("${es.ucm.fdi.snapshot-max-bytes:4194304}")
+    private int maxBytes;
+
+    /**
+     * Passes through whatever is written to it, keeping a copy (up to maxBytes)
+     * that can then be stored as a snapshot.
+     */
+    public class Recorder extends FilterOutputStream {
+        private final long realmId;
+        private final long version;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Recorder(long realmId, long version, OutputStream out) {
+            super(out);
+            this.realmId = realmId;
+            this.version = version;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            record(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            record(b, off, len);
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (copy != null && copy.size() + len > maxBytes) {
+                copy = null;
+            } else if (copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+
+        /**
+         * Stores what was written as the snapshot for its version; call only
+         * once the realm has been completely written.
+         */
+        public void save() {
+            if (copy != null) {
+                put(realmId, version, copy.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Returns the latest committed version of a realm, querying it only if unknown
+     */
+    public long version(long realmId, LongSupplier query) {
+        return versions.computeIfAbsent(realmId, id -> query.getAsLong());
+    }
+
+    /**
+     * Records a new realm version, once (and only if) the current transaction commits
+     */
+    public void committedOnSuccess(long realmId, long version) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                versions.merge(realmId, version, Math::max);
+            }
+        });
+    }
+
+    /**
+     * Returns the serialized realm for that version, or null if not available
+     */
+    public byte[] get(long realmId, long version) {
+        Snapshot s = snapshots.get(realmId);
+        return s != null && s.version == version ? s.json : null;
+    }
+
+    /**
+     * Stores a serialized realm. Newer versions always replace older ones.
+     */
+    public void put(long realmId, long version, byte[] json) {
+        snapshots.merge(realmId, new Snapshot(version, json),
+                (old, s) -> old.version > s.version ? old : s);
+    }
+
+    /**
+     * Wraps a stream that a realm will be written to, so that it can then be saved
+     */
+    public Recorder recorder(long realmId, long version, OutputStream out) {
+        return new Recorder(realmId, version, out);
+    }
+
+    /**
+     * Forgets everything about a realm; for example, because it was removed
+     */
+    public void evict(long realmId) {
+        versions.remove(realmId);
+        snapshots.remove(realmId);
+    }
+
+    /**
+     * Forgets everything; for example, because the whole database was replaced
+     */
+    public void clear() {
+        versions.clear();
+        snapshots.clear();
+    }
+
+    /**
+     * The HTTP entity tag used for a realm at a given version
+     */
+    public static String etag(long realmId, long version) {
+        return "\"" + realmId + "-" + version + "\"";
+    }
+}
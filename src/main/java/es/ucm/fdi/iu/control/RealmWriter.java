@@ -0,0 +1,267 @@
+package es.ucm.fdi.iu.control;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import es.ucm.fdi.iu.model.*;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes a realm's full Realm.Transfer as JSON, one entity at a time.
+ *
+ * Entities are never loaded: each Transfer is built from a scalar projection,
+ * read with a forward-only scrolling query; so there is nothing to hydrate,
+ * dirty-check or evict, and memory use does not depend on realm size.
+ *
+ * Collections are read for the whole realm as (owner id, id) pairs, sorted
+ * by owner, in step with the owners themselves; so any realm is read with
+ * the same number of queries.
+ *
+ * Exports (see export()) are written in the same way, and can be read back,
+ * into a new realm, by RealmReader.
+ */
+@Component
+public class RealmWriter {
+
+    // rows fetched from the database at a time
+    private static final int FETCH_SIZE = 256;
+    // version of the export layout, checked by RealmReader
+    public static final int EXPORT_FORMAT = 1;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // for stream(), whose serializer calls write() directly, and not via Spring's proxy
+    private TransactionTemplate readOnlyTransaction;
+
+    @PostConstruct
+    private void init() {
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+    }
+
+    /**
+     * The ids in a collection, for all owners in a realm. Consumed in step
+     * with a scroll over the owners, in increasing id order.
+     */
+    private static class IdLists implements AutoCloseable {
+        private final ScrollableResults pairs;
+        private boolean more;
+
+        /**
+         * @param query selecting (owner id, id) pairs, sorted by owner id and then id
+         */
+        private IdLists(Session session, String query, long realmId) {
+            pairs = scroll(session, query, realmId);
+            more = pairs.next();
+        }
+
+        /**
+         * Returns the ids for an owner; owners must be requested in increasing id order
+         */
+        private List<Long> of(long ownerId) {
+            List<Long> ids = new ArrayList<>();
+            while (more && ((Number) pairs.get(0)).longValue() <= ownerId) {
+                if (((Number) pairs.get(0)).longValue() == ownerId) {
+                    ids.add(((Number) pairs.get(1)).longValue());
+                }
+                more = pairs.next();
+            }
+            return ids;
+        }
+
+        @Override
+        public void close() {
+            pairs.close();
+        }
+    }
+
+    private static ScrollableResults scroll(Session session, String query, long realmId) {
+        return session.createQuery(query)
+                .setParameter("id", realmId)
+                .setReadOnly(true)
+                .setFetchSize(FETCH_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    private static long id(Object o) {
+        return ((Number) o).longValue();
+    }
+
+    /**
+     * Writes a realm, with the same fields as its Realm.Transfer, in a read-only
+     * transaction (see DataSourceConfig); or in the current one, if any.
+     */
+    @Transactional(readOnly = true)
+    public void write(long realmId, JsonGenerator g) throws IOException {
+        write(realmId, g, false);
+    }
+
+    /**
+     * Writes a realm for RealmReader to import elsewhere: as with write(), but
+     * with the export format first, and with the password hash and enabled flag
+     * of each user. Generators for binary formats (Smile, CBOR) work just as well.
+     */
+    @Transactional(readOnly = true)
+    public void export(long realmId, JsonGenerator g) throws IOException {
+        write(realmId, g, true);
+    }
+
+    private void write(long realmId, JsonGenerator g, boolean export) throws IOException {
+        Session session = entityManager.unwrap(Session.class);
+        Object[] r = (Object[]) session.createQuery(
+                "SELECT o.name, o.version FROM Realm o WHERE o.id = :id")
+                .setParameter("id", realmId)
+                .getSingleResult();
+        g.writeStartObject();
+        if (export) {
+            g.writeNumberField("format", EXPORT_FORMAT);
+        }
+        g.writeNumberField("id", realmId);
+        g.writeStringField("name", (String) r[0]);
+        g.writeNumberField("version", id(r[1]));
+        writeUsers(session, g, realmId, export);
+        writeGroups(session, g, realmId);
+        writeMovies(session, g, realmId);
+        writeAll(session, g, "ratings",
+                "SELECT o.id, o.user.id, o.movie.id, o.rating, o.labels FROM Rating o "
+                        + "WHERE o.realm.id = :id ORDER BY o.id", realmId,
+                o -> new Rating.Transfer(id(o[0]), id(o[1]), id(o[2]),
+                        o[3] != null ? (Integer) o[3] : -1,
+                        o[4] != null ? (String) o[4] : ""));
+        writeAll(session, g, "requests",
+                "SELECT o.id, o.user.id, o.group.id, o.status FROM Request o "
+                        + "WHERE o.realm.id = :id ORDER BY o.id", realmId,
+                o -> new Request.Transfer(id(o[0]), id(o[1]), id(o[2]), o[3].toString()));
+        g.writeEndObject();
+    }
+
+    private void writeUsers(Session session, JsonGenerator g, long realmId,
+                            boolean credentials) throws IOException {
+        try (IdLists groups = new IdLists(session,
+                "SELECT m.id, o.id FROM cgroup o JOIN o.members m "
+                        + "WHERE o.realm.id = :id ORDER BY m.id, o.id", realmId);
+             IdLists requests = new IdLists(session,
+                     "SELECT o.user.id, o.id FROM Request o "
+                             + "WHERE o.realm.id = :id ORDER BY o.user.id, o.id", realmId);
+             IdLists ratings = new IdLists(session,
+                     "SELECT o.user.id, o.id FROM Rating o "
+                             + "WHERE o.realm.id = :id ORDER BY o.user.id, o.id", realmId)) {
+            writeAll(session, g, "users",
+                    "SELECT o.id, o.username, o.roles, o.token, o.password, o.enabled FROM User o "
+                            + "WHERE o.realm.id = :id ORDER BY o.id", realmId,
+                    o -> {
+                        User.Transfer t = new User.Transfer(id(o[0]), (String) o[1], (String) o[2],
+                                (String) o[3], groups.of(id(o[0])), requests.of(id(o[0])), ratings.of(id(o[0])));
+                        if ( ! credentials) {
+                            return t;
+                        }
+                        ObjectNode node = mapper.valueToTree(t);
+                        node.put("password", (String) o[4]);
+                        node.put("enabled", (Boolean) o[5]);
+                        return node;
+                    });
+        }
+    }
+
+    private void writeGroups(Session session, JsonGenerator g, long realmId) throws IOException {
+        try (IdLists members = new IdLists(session,
+                "SELECT o.id, m.id FROM cgroup o JOIN o.members m "
+                        + "WHERE o.realm.id = :id ORDER BY o.id, m.id", realmId);
+             IdLists requests = new IdLists(session,
+                     "SELECT o.group.id, o.id FROM Request o "
+                             + "WHERE o.realm.id = :id ORDER BY o.group.id, o.id", realmId)) {
+            writeAll(session, g, "groups",
+                    "SELECT o.id, o.name, o.owner.id FROM cgroup o "
+                            + "WHERE o.realm.id = :id ORDER BY o.id", realmId,
+                    o -> new Group.Transfer(id(o[0]), (String) o[1], id(o[2]),
+                            members.of(id(o[0])), requests.of(id(o[0]))));
+        }
+    }
+
+    private void writeMovies(Session session, JsonGenerator g, long realmId) throws IOException {
+        try (IdLists ratings = new IdLists(session,
+                "SELECT o.movie.id, o.id FROM Rating o "
+                        + "WHERE o.realm.id = :id ORDER BY o.movie.id, o.id", realmId)) {
+            writeAll(session, g, "movies",
+                    "SELECT o.id, o.imdb, o.name, o.director, o.actors, o.year, o.minutes FROM Movie o "
+                            + "WHERE o.realm.id = :id ORDER BY o.id", realmId,
+                    o -> new Movie.Transfer(id(o[0]), (String) o[1], (String) o[2],
+                            (String) o[3], (String) o[4], (Integer) o[5], (Integer) o[6],
+                            ratings.of(id(o[0]))));
+        }
+    }
+
+    /**
+     * Writes a field with an array of transfers, each built from a row of a projection
+     */
+    private void writeAll(Session session, JsonGenerator g, String field, String query,
+                          long realmId, Function<Object[], Object> toTransfer) throws IOException {
+        g.writeArrayFieldStart(field);
+        try (ScrollableResults results = scroll(session, query, realmId)) {
+            while (results.next()) {
+                g.writeObject(toTransfer.apply(results.get()));
+            }
+        }
+        g.writeEndArray();
+    }
+
+    /**
+     * Returns a placeholder for a realm that, when serialized by Jackson,
+     * is written as by write(), in a read-only transaction of its own. Useful
+     * as a return value for endpoints; even for those that change the realm,
+     * since it is only read once their transaction has committed.
+     */
+    public JsonSerializable stream(long realmId) {
+        return new JsonSerializable.Base() {
+            @Override
+            public void serialize(JsonGenerator g, SerializerProvider provider) throws IOException {
+                writeReadOnly(realmId, g);
+            }
+
+            @Override
+            public void serializeWithType(JsonGenerator g, SerializerProvider provider,
+                                          TypeSerializer typeSer) throws IOException {
+                writeReadOnly(realmId, g);
+            }
+        };
+    }
+
+    private void writeReadOnly(long realmId, JsonGenerator g) throws IOException {
+        try {
+            readOnlyTransaction.executeWithoutResult(s -> {
+                try {
+                    write(realmId, g, false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package es.ucm.fdi.iu.control;
 
-import es.ucm.fdi.iu.LocalData;
+import es.ucm.fdi.iu.Thumbnailer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.persistence.EntityManager;
 import java.io.*;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  *  Allows user management, and generating random values for
@@ -29,29 +41,104 @@ public class RootController {
 	@Autowired
 	private EntityManager entityManager;
 
-	@Autowired
-    private LocalData localData;
+    @Autowired
+    private Thumbnailer thumbnailer;
+
+    @Value("${es.ucm.fdi.poster-max-age-seconds:86400}")
+    private long posterMaxAge;
 
 	@GetMapping("/login")
     public String login(Model model) {
         return "login";
     }
 
-    private static InputStream defaultPoster() {
-	    return new BufferedInputStream(Objects.requireNonNull(
-            RootController.class.getClassLoader().getResourceAsStream(
-                "static/img/default-poster.jpg")));
+    // served when there is no poster for a movie; read once, and kept in memory
+    private static final byte[] DEFAULT_POSTER = readDefaultPoster();
+    private static final String DEFAULT_POSTER_ETAG = DigestUtils.md5DigestAsHex(DEFAULT_POSTER);
+
+    // thumbnails of the default poster, by width; generated once, when first requested
+    private final Map<Integer, byte[]> defaultThumbnails = new ConcurrentHashMap<>();
+
+    private static byte[] readDefaultPoster() {
+        try (InputStream in = Objects.requireNonNull(
+                RootController.class.getClassLoader().getResourceAsStream(
+                        "static/img/default-poster.jpg"))) {
+            return FileCopyUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
+    /**
+     * Serves the poster for a movie, or the default poster if there is none.
+     * If a width is requested, a thumbnail of (at least) that width is served instead
+     * (see Thumbnailer); or, until it has been generated, the full-size poster.
+     *
+     * Responses carry an ETag and, for actual posters, Last-Modified; Spring answers
+     * conditional requests for them with 304, and Range requests with 206.
+     * Posters may be cached for es.ucm.fdi.poster-max-age-seconds; the default poster
+     * (and stand-ins for thumbnails) must always be revalidated, since they may change.
+     */
     @GetMapping("/poster/{id}")
-    public StreamingResponseBody getPoster(@PathVariable String id) throws IOException {
-	    if ( ! id.matches("tt[0-9]+")) {
-	        return os -> FileCopyUtils.copy(RootController.defaultPoster(), os);
-        } else {
-            File f = localData.getFile("posters", ""+id+".jpg");
-            InputStream in = new BufferedInputStream(f.exists() ?
-                new FileInputStream(f) : RootController.defaultPoster());
-            return os -> FileCopyUtils.copy(in, os);
+    public ResponseEntity<Resource> getPoster(@PathVariable String id,
+            @RequestParam(value = "w", required = false) Integer w) {
+        int width = w != null ? thumbnailer.width(w) : 0;
+        // a single stat: lastModified() is 0 for files that do not exist
+        File f = thumbnailer.poster(id);
+        long lastModified = f != null ? f.lastModified() : 0;
+        if (lastModified == 0 && width == 0) {
+            return image(CacheControl.noCache(), DEFAULT_POSTER_ETAG, new ByteArrayResource(DEFAULT_POSTER));
+        } else if (lastModified == 0) {
+            return image(CacheControl.noCache(), DEFAULT_POSTER_ETAG + "-" + width,
+                    new ByteArrayResource(defaultThumbnails.computeIfAbsent(width,
+                            k -> thumbnailer.resize(DEFAULT_POSTER, k))));
+        }
+
+        CacheControl cacheControl = CacheControl.maxAge(posterMaxAge, TimeUnit.SECONDS);
+        if (width != 0) {
+            File t = thumbnail(f, id, width);
+            if (t != null) {
+                f = t;
+                lastModified = t.lastModified();
+            } else {
+                cacheControl = CacheControl.noCache();
+            }
         }
+        return ResponseEntity.ok()
+                .cacheControl(cacheControl)
+                .eTag(Long.toHexString(lastModified) + "-" + Long.toHexString(f.length()))
+                .lastModified(lastModified)
+                .contentType(MediaType.IMAGE_JPEG)
+                .body(new FileSystemResource(f));
 	}
+
+    private static ResponseEntity<Resource> image(CacheControl cacheControl, String etag, Resource body) {
+        return ResponseEntity.ok()
+                .cacheControl(cacheControl)
+                .eTag(etag)
+                .contentType(MediaType.IMAGE_JPEG)
+                .body(body);
+    }
+
+    /**
+     * Returns a thumbnail for a poster, if it is ready; or null otherwise, after
+     * starting to generate it in the background. Never waits for it, so that
+     * a page full of new thumbnails does not take up the server's threads.
+     */
+    private File thumbnail(File poster, String id, int width) {
+        File t = thumbnailer.get(poster, id, width);
+        if (t != null) {
+            return t;
+        }
+        try {
+            thumbnailer.generate(poster, id, width).whenComplete((done, e) -> {
+                if (e != null) {
+                    log.info("No {} px thumbnail for {}: {}", width, id, e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.info("No {} px thumbnail for {} yet: {}", width, id, e.toString());
+        }
+        return null;
+    }
 }
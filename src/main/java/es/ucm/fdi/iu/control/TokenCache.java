@@ -0,0 +1,93 @@
+package es.ucm.fdi.iu.control;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of API tokens to the users (and realms)
+ * they belong to.
+ *
+ * Entries are only ever added from database lookups; it is the responsibility
+ * of whoever changes or removes a token to evict it.
+ */
+@Component
+public class TokenCache {
+
+    public static class Entry {
+        public final long userId;
+        public final long realmId;
+
+        private Entry(long userId, long realmId) {
+            this.userId = userId;
+            this.realmId = realmId;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    public TokenCache(@Value("${es.ucm.fdi.token-cache-size:1024}") int maxSize) {
+        entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * Returns the entry for a token, or null if not cached
+     */
+    public Entry get(String token) {
+        return entries.get(token);
+    }
+
+    public void put(String token, long userId, long realmId) {
+        entries.put(token, new Entry(userId, realmId));
+    }
+
+    /**
+     * Runs an eviction now and, if within a transaction, again after it completes,
+     * in case a concurrent lookup re-cached stale entries in-between.
+     */
+    private void evictNowAndAfterTransaction(Runnable eviction) {
+        eviction.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Evicts a token; for example, because it was renewed
+     */
+    public void evict(String token) {
+        if (token != null) {
+            evictNowAndAfterTransaction(() -> entries.remove(token));
+        }
+    }
+
+    /**
+     * Evicts all tokens of a realm; for example, because it was removed
+     */
+    public void evictRealm(long realmId) {
+        evictNowAndAfterTransaction(() -> {
+            synchronized (entries) {
+                entries.values().removeIf(e -> e.realmId == realmId);
+            }
+        });
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
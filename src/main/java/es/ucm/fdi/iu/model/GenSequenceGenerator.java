@@ -0,0 +1,40 @@
+package es.ucm.fdi.iu.model;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.config.spi.StandardConverters;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.util.Properties;
+
+/**
+ * Generates ids for all entities from the shared "gen" sequence, in blocks.
+ *
+ * Each value V read from the sequence reserves ids V to V + blockSize - 1
+ * (the "pooled-lo" optimizer), so only one in every blockSize inserts needs
+ * to read the sequence. Since ids are never below the value read, the sequence
+ * only needs to start above the ids that were assigned by hand, in import.sql.
+ *
+ * Block size is set via BLOCK_SIZE (see AppConfig); the sequence must be
+ * incremented by that same amount, as it is when Hibernate creates it.
+ */
+public class GenSequenceGenerator extends SequenceStyleGenerator {
+
+    public static final String SEQUENCE_NAME = "gen";
+    public static final String BLOCK_SIZE = "es.ucm.fdi.id-block-size";
+    public static final int DEFAULT_BLOCK_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry)
+            throws MappingException {
+        String blockSize = serviceRegistry.getService(ConfigurationService.class)
+                .getSetting(BLOCK_SIZE, StandardConverters.STRING, String.valueOf(DEFAULT_BLOCK_SIZE));
+        params.setProperty(SEQUENCE_PARAM, SEQUENCE_NAME);
+        params.setProperty(INCREMENT_PARAM, blockSize);
+        params.setProperty(OPT_PARAM, StandardOptimizerDescriptor.POOLED_LO.getExternalName());
+        super.configure(type, params, serviceRegistry);
+    }
+}
@@ -3,6 +3,7 @@ package es.ucm.fdi.iu.model;
 import lombok.*;
 
 import javax.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,14 +14,18 @@ import java.util.stream.Collectors;
  * A single user may be in multiple groups. Minimum group size is 1: the owner.
  */
 @Entity(name = "cgroup")
+@Table(indexes = {
+        @Index(name = "group_owner", columnList = "owner_id"),
+        @Index(name = "group_realm", columnList = "realm_id")
+})
 @Data
 @NoArgsConstructor
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
 public class Group implements Transferable<Group.Transfer> {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
     @EqualsAndHashCode.Include
 	private long id;
 
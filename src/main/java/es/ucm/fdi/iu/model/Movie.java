@@ -1,6 +1,9 @@
 package es.ucm.fdi.iu.model;
 
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
 import lombok.*;
 
 import java.util.ArrayList;
@@ -9,15 +12,22 @@ import java.util.stream.Collectors;
 
 /**
  * A movie. It can be edited by admins, and rated, and so on and so forth.
+ *
+ * Movies change rarely, and are kept in the second-level cache; their ratings,
+ * which change all the time, are not.
  */
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Table(indexes = {
+        @Index(name = "movie_realm", columnList = "realm_id")
+})
 @Data
 @NoArgsConstructor
 public class Movie implements Transferable<Movie.Transfer> {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
 	private long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -3,6 +3,7 @@ package es.ucm.fdi.iu.model;
 import lombok.*;
 
 import javax.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -11,14 +12,26 @@ import java.util.stream.Collectors;
  * A label on a movie, authored by a user. Can optionally provide a rating.
  */
 @Entity
+@Table(uniqueConstraints = {
+        // max 1 rating per user/movie pair
+        @UniqueConstraint(name = "rating_user_movie", columnNames = {"user_id", "movie_id"})
+    }, indexes = {
+        @Index(name = "rating_movie", columnList = "movie_id"),
+        @Index(name = "rating_realm", columnList = "realm_id")
+})
 @Data
 @NoArgsConstructor
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@NamedQueries({
+        @NamedQuery(name="Rating.byUserAndMovie",
+                query="SELECT r FROM Rating r "
+                        + "WHERE r.user.id = :userId AND r.movie.id = :movieId")
+})
 public class Rating implements Transferable<Rating.Transfer> {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
     @EqualsAndHashCode.Include
     private long id;
 
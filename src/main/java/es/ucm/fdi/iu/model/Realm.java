@@ -3,6 +3,9 @@ package es.ucm.fdi.iu.model;
 import lombok.*;
 
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -11,21 +14,40 @@ import java.util.stream.Collectors;
  * An independent realm. Users, groups, movie-ratings and so on are per-realm.
  *
  * Note that IDs are global.
+ *
+ * Realms and their lists of movies are kept in the second-level cache. Since
+ * movies are not always added to a loaded list (see ApiController.addIfLoaded),
+ * whoever adds or removes movies must evict that list (see MOVIES_REGION).
  */
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Data
 @NoArgsConstructor
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@NamedQueries({
+        @NamedQuery(name="Realm.bumpVersion",
+                query="UPDATE Realm r SET r.version = r.version + 1 "
+                        + "WHERE r.id = :id"),
+        @NamedQuery(name="Realm.version",
+                query="SELECT r.version FROM Realm r "
+                        + "WHERE r.id = :id")
+})
 public class Realm implements Transferable<Realm.Transfer> {
 
+    public static final String MOVIES_REGION = "es.ucm.fdi.iu.model.Realm.movies";
+
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
     @EqualsAndHashCode.Include
 	private long id;
 
     private String name;
 
+    // bumped by every change to the realm or to anything in it; only via Realm.bumpVersion
+    @Column(updatable = false)
+    private long version;
+
     @OneToMany(cascade = CascadeType.REMOVE)
     @JoinColumn(name = "realm_id")
     private List<User> users = new ArrayList<>();
@@ -34,6 +56,7 @@ public class Realm implements Transferable<Realm.Transfer> {
     private List<Group> groups = new ArrayList<>();
     @OneToMany(cascade = CascadeType.REMOVE)
     @JoinColumn(name = "realm_id")
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private List<Movie> movies = new ArrayList<>();
     @OneToMany(cascade = CascadeType.REMOVE)
     @JoinColumn(name = "realm_id")
@@ -47,6 +70,7 @@ public class Realm implements Transferable<Realm.Transfer> {
     public static class Transfer {
         private long id;
         private String name;
+        private long version;
         private List<User.Transfer> users;
         private List<Group.Transfer> groups;
         private List<Movie.Transfer> movies;
@@ -56,7 +80,7 @@ public class Realm implements Transferable<Realm.Transfer> {
 
     @Override
     public Transfer toTransfer() {
-        return new Transfer(id, name,
+        return new Transfer(id, name, version,
             users.stream().map(Transferable::toTransfer).collect(Collectors.toList()),
             groups.stream().map(Transferable::toTransfer).collect(Collectors.toList()),
             movies.stream().map(Transferable::toTransfer).collect(Collectors.toList()),
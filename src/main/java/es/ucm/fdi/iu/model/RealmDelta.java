@@ -0,0 +1,126 @@
+package es.ucm.fdi.iu.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * The changes that a single operation made to a realm.
+ *
+ * Only entities that were created, changed or removed are listed, so that
+ * clients can patch their local state instead of rebuilding it from a full
+ * Realm.Transfer. Since IDs are global, removals are listed as plain IDs.
+ */
+public class RealmDelta implements Transferable<RealmDelta.Transfer> {
+
+    @Getter
+    private final Realm realm;
+
+    // entities are only resolved to ids when transferred, since new ones have no id yet
+    private final List<Transferable<?>> changed = new ArrayList<>();
+    private final Set<Long> removed = new LinkedHashSet<>();
+    // created entities, by type and natural key, since they may not be flushed yet
+    private final Map<List<Object>, Transferable<?>> created = new HashMap<>();
+
+    public RealmDelta(Realm realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * Marks entities as created or changed.
+     */
+    public RealmDelta changed(Transferable<?>... entities) {
+        changed.addAll(Arrays.asList(entities));
+        return this;
+    }
+
+    /**
+     * Marks entities as changed.
+     */
+    public RealmDelta changed(Collection<? extends Transferable<?>> entities) {
+        changed.addAll(entities);
+        return this;
+    }
+
+    /**
+     * Marks an entity as created, and allows it to be found by a natural key
+     * (such as the ids of a rating's user and movie) via findCreated.
+     */
+    public RealmDelta created(Transferable<?> entity, Object... key) {
+        created.put(naturalKey(entity.getClass(), key), entity);
+        return changed(entity);
+    }
+
+    /**
+     * Returns an entity that was marked as created with a given natural key,
+     * or null if none was.
+     */
+    public <T extends Transferable<?>> T findCreated(Class<T> type, Object... key) {
+        return type.cast(created.get(naturalKey(type, key)));
+    }
+
+    private static List<Object> naturalKey(Class<?> type, Object... key) {
+        List<Object> k = new ArrayList<>(Arrays.asList(key));
+        k.add(0, type);
+        return k;
+    }
+
+    /**
+     * Marks an entity as removed.
+     */
+    public RealmDelta removed(long id) {
+        removed.add(id);
+        return this;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Transfer {
+        private long id;
+        private long version;
+        private List<User.Transfer> users;
+        private List<Group.Transfer> groups;
+        private List<Movie.Transfer> movies;
+        private List<Rating.Transfer> ratings;
+        private List<Request.Transfer> requests;
+        private List<Long> removed;
+    }
+
+    @Override
+    public Transfer toTransfer() {
+        Map<Long, User.Transfer> users = new LinkedHashMap<>();
+        Map<Long, Group.Transfer> groups = new LinkedHashMap<>();
+        Map<Long, Movie.Transfer> movies = new LinkedHashMap<>();
+        Map<Long, Rating.Transfer> ratings = new LinkedHashMap<>();
+        Map<Long, Request.Transfer> requests = new LinkedHashMap<>();
+        for (Transferable<?> o : changed) {
+            Object t = o.toTransfer();
+            if (t instanceof User.Transfer) {
+                users.put(((User.Transfer) t).getId(), (User.Transfer) t);
+            } else if (t instanceof Group.Transfer) {
+                groups.put(((Group.Transfer) t).getId(), (Group.Transfer) t);
+            } else if (t instanceof Movie.Transfer) {
+                movies.put(((Movie.Transfer) t).getId(), (Movie.Transfer) t);
+            } else if (t instanceof Rating.Transfer) {
+                ratings.put(((Rating.Transfer) t).getId(), (Rating.Transfer) t);
+            } else if (t instanceof Request.Transfer) {
+                requests.put(((Request.Transfer) t).getId(), (Request.Transfer) t);
+            }
+        }
+        for (long id : removed) {
+            users.remove(id);
+            groups.remove(id);
+            movies.remove(id);
+            ratings.remove(id);
+            requests.remove(id);
+        }
+        return new Transfer(realm.getId(), realm.getVersion(),
+                new ArrayList<>(users.values()),
+                new ArrayList<>(groups.values()),
+                new ArrayList<>(movies.values()),
+                new ArrayList<>(ratings.values()),
+                new ArrayList<>(requests.values()),
+                new ArrayList<>(removed));
+    }
+}
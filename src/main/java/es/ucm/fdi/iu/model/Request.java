@@ -6,6 +6,7 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 
 import javax.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -14,15 +15,27 @@ import java.util.stream.Collectors;
  * A group invitation request.
  */
 @Entity
+@Table(uniqueConstraints = {
+        // max 1 request per user/group pair
+        @UniqueConstraint(name = "request_user_group", columnNames = {"user_id", "group_id"})
+    }, indexes = {
+        @Index(name = "request_group", columnList = "group_id"),
+        @Index(name = "request_realm", columnList = "realm_id")
+})
 @Data
 @NoArgsConstructor
+@NamedQueries({
+        @NamedQuery(name="Request.byUserAndGroup",
+                query="SELECT r FROM Request r "
+                        + "WHERE r.user.id = :userId AND r.group.id = :groupId")
+})
 public class Request implements Transferable<Request.Transfer> {
 
     public enum Status { AWAITING_GROUP, AWAITING_USER, ACCEPTED, REJECTED };
 
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
 	private long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -1,13 +1,10 @@
 package es.ucm.fdi.iu.model;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.Getter;
-import lombok.NoArgsConstructor;
+import lombok.*;
 
 import javax.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -15,6 +12,10 @@ import java.util.stream.Collectors;
  * An authorized user of the system.
  */
 @Entity
+@Table(indexes = {
+        @Index(name = "user_token", columnList = "token", unique = true),
+        @Index(name = "user_realm", columnList = "realm_id")
+})
 @Data
 @NoArgsConstructor
 @NamedQueries({
@@ -35,8 +36,8 @@ public class User implements Transferable<User.Transfer> {
     }
 
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gen")
-    @SequenceGenerator(name = "gen", sequenceName = "gen")
+    @GeneratedValue(generator = "gen")
+    @GenericGenerator(name = "gen", strategy = "es.ucm.fdi.iu.model.GenSequenceGenerator")
 	private long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -53,6 +54,14 @@ public class User implements Transferable<User.Transfer> {
     private boolean enabled;
     private String roles; // split by ',' to separate roles
 
+    // one bit per role in roles, by ordinal; kept in sync by setRoles and parseRoles
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private int roleBits;
+
     @OneToMany(cascade = CascadeType.REMOVE)
     @JoinColumn(name = "owner_id")
     private List<Group> managedGroups = new ArrayList<>();
@@ -66,14 +75,37 @@ public class User implements Transferable<User.Transfer> {
     @JoinColumn(name = "user_id")
     private List<Rating> ratings = new ArrayList<>();
 
+    public void setRoles(String roles) {
+        this.roles = roles;
+        parseRoles();
+    }
+
+    /**
+     * Parses roles into roleBits; called whenever roles are loaded or set.
+     * Unknown role names are ignored.
+     */
+    @PostLoad
+    private void parseRoles() {
+        roleBits = 0;
+        if (roles == null) {
+            return;
+        }
+        for (String name : roles.split(",")) {
+            for (Role role : Role.values()) {
+                if (role.name().equals(name)) {
+                    roleBits |= 1 << role.ordinal();
+                }
+            }
+        }
+    }
+
     /**
      * Checks whether this user has a given role.
      * @param role to check
      * @return true iff this user has that role.
      */
     public boolean hasRole(Role role) {
-        String roleName = role.name();
-        return Arrays.asList(roles.split(",")).contains(roleName);
+        return (roleBits & (1 << role.ordinal())) != 0;
     }
 
     @Getter
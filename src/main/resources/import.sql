@@ -1,8 +1,8 @@
 -- create a couple of realms
-INSERT INTO Realm (id, name)
-VALUES (10, 'top');
-INSERT INTO Realm (id, name)
-VALUES (11, 'g01');
+INSERT INTO Realm (id, name, version)
+VALUES (10, 'top', 0);
+INSERT INTO Realm (id, name, version)
+VALUES (11, 'g01', 0);
 
 --insert default root-level admin (username a, password aa)
 INSERT INTO User (id, enabled, roles, username, password, token, realm_id)
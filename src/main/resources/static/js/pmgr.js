@@ -107,7 +107,7 @@ function createMovieItem(movie) {
         <div class="card-body pcard">
             <div class="row">
                 <div class="col-auto">
-                    <img class="iuthumb" src="${serverUrl}poster/${movie.imdb}"/>
+                    <img class="iuthumb" src="${serverUrl}poster/${movie.imdb}?w=100"/>
                 </div>
                 <div class="col">
                     <div class="row-12">
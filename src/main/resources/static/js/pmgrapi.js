@@ -79,7 +79,7 @@ class Movie {
      */
     constructor(id, imdb, name, director, actors, year, minutes, ratings) {
         if (id != -1) this.id = +id;
-        this.imdb = imdb; // nota: en servidor/poster/<imdb> tienes el póster (para el top-400)
+        this.imdb = imdb; // nota: en servidor/poster/<imdb> tienes el póster (para el top-400); y en servidor/poster/<imdb>?w=100, una miniatura
         this.name = name;
         this.director = director;
         this.actors = actors;
@@ -0,0 +1,159 @@
+package es.ucm.fdi.iu;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that operations in a batch see the changes made by earlier ones,
+ * although these are not flushed right away.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("mem")
+class BatchTests {
+
+	// token of the admin of realm 'g01'
+	private static final String TOKEN = "eXPaTaTa";
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Autowired
+	private ObjectMapper mapper;
+
+	@Test
+	void removingUserRemovesRatingAddedInSameBatch() throws Exception {
+		JsonNode realm = list();
+		JsonNode user = null;
+		for (JsonNode u : realm.get("users")) {
+			if ( ! u.get("role").asText().contains("ADMIN")
+					&& (user == null || u.get("ratings").size() > user.get("ratings").size())) {
+				user = u;
+			}
+		}
+		assertNotNull(user);
+		long userId = user.get("id").asLong();
+		Set<Long> rated = new HashSet<>();
+		for (JsonNode r : realm.get("ratings")) {
+			if (r.get("user").asLong() == userId) {
+				rated.add(r.get("movie").asLong());
+			}
+		}
+		long movieId = 0;
+		for (JsonNode m : realm.get("movies")) {
+			if ( ! rated.contains(m.get("id").asLong())) {
+				movieId = m.get("id").asLong();
+			}
+		}
+		assertNotEquals(0, movieId);
+
+		ArrayNode ops = mapper.createArrayNode();
+		op(ops, "addrating").put("user", userId).put("movie", movieId)
+				.put("rating", 3).put("labels", "new");
+		op(ops, "rmuser").put("id", userId);
+		JsonNode delta = batch(ops);
+
+		Set<Long> removed = ids(delta.get("removed"));
+		assertTrue(removed.contains(userId));
+		assertTrue(removed.containsAll(ids(user.get("ratings"))));
+		Set<Long> before = new HashSet<>();
+		for (String kind : new String[] {"users", "groups", "movies", "ratings", "requests"}) {
+			for (JsonNode o : realm.get(kind)) {
+				before.add(o.get("id").asLong());
+			}
+		}
+		removed.removeAll(before);
+		assertEquals(1, removed.size(), "the new rating should be removed too");
+		for (JsonNode r : list().get("ratings")) {
+			assertNotEquals(userId, r.get("user").asLong());
+		}
+	}
+
+	@Test
+	void ratingRemovedAndAddedAgainInSameBatchIsNew() throws Exception {
+		JsonNode rating = list().get("ratings").get(0);
+		long ratingId = rating.get("id").asLong();
+		long userId = rating.get("user").asLong();
+		long movieId = rating.get("movie").asLong();
+
+		ArrayNode ops = mapper.createArrayNode();
+		op(ops, "rmrating").put("id", ratingId);
+		op(ops, "addrating").put("user", userId).put("movie", movieId)
+				.put("rating", 5).put("labels", "again");
+		JsonNode delta = batch(ops);
+
+		assertTrue(ids(delta.get("removed")).contains(ratingId));
+		assertEquals(1, delta.get("ratings").size());
+		long added = delta.get("ratings").get(0).get("id").asLong();
+		assertNotEquals(ratingId, added);
+
+		int found = 0;
+		for (JsonNode r : list().get("ratings")) {
+			assertNotEquals(ratingId, r.get("id").asLong());
+			if (r.get("user").asLong() == userId && r.get("movie").asLong() == movieId) {
+				assertEquals(added, r.get("id").asLong());
+				assertEquals("again", r.get("labels").asText());
+				found ++;
+			}
+		}
+		assertEquals(1, found);
+	}
+
+	/**
+	 * Adds an operation to a batch, and returns its (empty) data
+	 */
+	private static ObjectNode op(ArrayNode ops, String name) {
+		ObjectNode op = ops.addObject();
+		op.put("op", name);
+		return op.putObject("data");
+	}
+
+	private JsonNode list() throws Exception {
+		return mapper.readTree(mvc.perform(get("/api/" + TOKEN + "/list"))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString());
+	}
+
+	private JsonNode batch(ArrayNode ops) throws Exception {
+		// batches answer asynchronously, once any passwords have been hashed
+		MvcResult started = mvc.perform(post("/api/" + TOKEN + "/batch?delta=true")
+						.contentType(MediaType.APPLICATION_JSON)
+						.content(mapper.writeValueAsString(ops)))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		return mapper.readTree(mvc.perform(asyncDispatch(started))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString());
+	}
+
+	private static Set<Long> ids(JsonNode array) {
+		Set<Long> ids = new HashSet<>();
+		for (JsonNode id : array) {
+			ids.add(id.asLong());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,65 @@
+package es.ucm.fdi.iu;
+
+import es.ucm.fdi.iu.control.RealmSnapshots;
+import es.ucm.fdi.iu.control.TokenCache;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+
+import javax.persistence.EntityManagerFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that listing a realm takes a fixed number of SQL statements,
+ * no matter how many users, movies and so on it contains.
+ */
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@AutoConfigureMockMvc
+@ActiveProfiles("mem")
+class ListQueriesTests {
+
+	// tokens of the admins of realms 'g01' (few movies, with ratings) and 'top' (many movies)
+	private static final String SMALL_REALM_TOKEN = "eXPaTaTa";
+	private static final String LARGE_REALM_TOKEN = "sFCaUYg";
+
+	// realm, version, 5 entity queries and 6 collections; plus the token lookup
+	private static final int MAX_STATEMENTS = 14;
+
+	@Autowired
+	private MockMvc mvc;
+
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
+	@Autowired
+	private RealmSnapshots snapshots;
+
+	@Autowired
+	private TokenCache tokens;
+
+	@Test
+	void listStatementsDoNotDependOnRealmSize() throws Exception {
+		long small = statementsToList(SMALL_REALM_TOKEN);
+		long large = statementsToList(LARGE_REALM_TOKEN);
+		assertEquals(small, large);
+		assertTrue(small <= MAX_STATEMENTS, "too many statements per list: " + small);
+	}
+
+	private long statementsToList(String token) throws Exception {
+		snapshots.clear();
+		tokens.clear();
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.clear();
+		mvc.perform(get("/api/" + token + "/list")).andExpect(status().isOk());
+		return statistics.getPrepareStatementCount();
+	}
+}
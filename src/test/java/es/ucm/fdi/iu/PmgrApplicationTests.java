@@ -2,8 +2,10 @@ package es.ucm.fdi.iu;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
 
 @SpringBootTest
+@ActiveProfiles("mem")
 class PmgrApplicationTests {
 
 	@Test